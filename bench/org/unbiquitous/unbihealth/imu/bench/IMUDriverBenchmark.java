@@ -0,0 +1,111 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.uos.core.InitialProperties;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link IMUDriver#sensorChanged}, the quaternion, primitive, handle based and bulk overloads, with throttling
+ * disabled, so every sample goes through tare correction, normalization, the sensitivity check, recording
+ * (optionally) and, unless suppressed by the sensitivity, dispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IMUDriverBenchmark {
+    private static final int PACKET_SIZE = 32;
+
+    @Param({"false", "true"})
+    public boolean recording;
+
+    @Param({"0.0", "0.01"})
+    public double sensitivity;
+
+    private SensorDataSet data;
+    private IMUDriver driver;
+    private String recordId;
+    private int handle;
+    private int i = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new SensorDataSet();
+        InitialProperties props = new InitialProperties();
+        props.put(IMUDriver.MIN_UPDATE_INTERVAL_KEY, 0);
+        props.put(IMUDriver.SENSITIVITY_KEY, sensitivity);
+        driver = new IMUDriver();
+        driver.init(new StubGateway().getGateway(), props, "bench");
+        handle = driver.getSensorHandle(null);
+    }
+
+    @Setup(Level.Iteration)
+    public void startRecording() {
+        if (!recording)
+            return;
+        Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.START_RECORD_NAME);
+        call.addParameter(IMUDriver.SENSOR_ID_PARAM_NAME, driver.getDefaultSensorId());
+        Response response = new Response();
+        driver.startRecording(call, response, null);
+        recordId = response.getResponseData(IMUDriver.RECORD_ID_PARAM_NAME).toString();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopRecording() {
+        if (!recording)
+            return;
+        Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.STOP_RECORD_NAME);
+        call.addParameter(IMUDriver.SENSOR_ID_PARAM_NAME, driver.getDefaultSensorId());
+        call.addParameter(IMUDriver.RECORD_ID_PARAM_NAME, recordId);
+        driver.stopRecording(call, new Response(), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        driver.destroy();
+    }
+
+    @Benchmark
+    public void sensorChanged() throws IOException {
+        driver.sensorChanged(data.quaternion(i++), null);
+    }
+
+    @Benchmark
+    public void sensorChangedHandle() throws IOException {
+        int j = i++;
+        driver.sensorChanged(handle, data.timestamp(j), data.w(j), data.x(j), data.y(j), data.z(j));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKET_SIZE)
+    public void sensorChangedBulk() throws IOException {
+        int offset = (i += PACKET_SIZE) % (data.size() - PACKET_SIZE);
+        driver.sensorChanged(handle, data.timestamps(), data.w(), data.x(), data.y(), data.z(), offset, PACKET_SIZE);
+    }
+
+    @Benchmark
+    public void sensorChangedPrimitive() throws IOException {
+        int j = i++;
+        driver.sensorChanged(null, data.timestamp(j), data.w(j), data.x(j), data.y(j), data.z(j));
+    }
+}
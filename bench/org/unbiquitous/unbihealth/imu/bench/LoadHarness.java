@@ -0,0 +1,278 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.uos.core.InitialProperties;
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.applicationManager.CallContext;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Measures the driver end to end, from {@link IMUDriver#sensorChanged} to the delivery of change events, with
+ * no smartspace: a {@link SimulatedGateway} plays N listeners, registered through the driver like real ones, and
+ * M synthetic sensors, each on its own thread, feed the driver at a fixed rate. After a warm up, it reports the
+ * sustained ingest and delivery throughput and the ingest to delivery latency percentiles of each listener and
+ * of all of them together.
+ * <p>
+ * Options are given as {@code name=value} arguments; run with {@code help} to list them:
+ * <pre>
+ * mvn -Pbench package
+ * java -cp target/benchmarks.jar org.unbiquitous.unbihealth.imu.bench.LoadHarness sensors=8 rate=200 listeners=4
+ * </pre>
+ */
+public final class LoadHarness {
+    private static final Map<String, String[]> OPTIONS = new LinkedHashMap<>();
+
+    static {
+        OPTIONS.put("sensors", new String[]{"4", "number of synthetic sensors"});
+        OPTIONS.put("rate", new String[]{"100", "samples per second of each sensor, up to 1000"});
+        OPTIONS.put("listeners", new String[]{"4", "number of simulated listeners"});
+        OPTIONS.put("latency", new String[]{"1", "time each notification takes, in ms"});
+        OPTIONS.put("jitter", new String[]{"0", "maximum random time added to the latency, in ms"});
+        OPTIONS.put("failureRate", new String[]{"0", "probability of a notification failing"});
+        OPTIONS.put("slow", new String[]{"0", "how many of the listeners are slow"});
+        OPTIONS.put("slowLatency", new String[]{"50", "time each notification to a slow listener takes, in ms"});
+        OPTIONS.put("batch", new String[]{"false", "whether listeners register for batched events"});
+        OPTIONS.put("step", new String[]{"0", "the driver's minimum update interval, in ms"});
+        OPTIONS.put("sensitivity", new String[]{"0", "the driver's sensitivity"});
+        OPTIONS.put("warmup", new String[]{"2", "warm up time, in s"});
+        OPTIONS.put("duration", new String[]{"10", "measurement time, in s"});
+    }
+
+    private LoadHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        if (options == null) {
+            System.out.println("Options, as name=value:");
+            for (Map.Entry<String, String[]> e : OPTIONS.entrySet())
+                System.out.printf("  %-12s %s (default %s)%n", e.getKey(), e.getValue()[1], e.getValue()[0]);
+            return;
+        }
+        int sensorCount = Integer.parseInt(options.get("sensors"));
+        int rate = Integer.parseInt(options.get("rate"));
+        int listenerCount = Integer.parseInt(options.get("listeners"));
+        int slow = Integer.parseInt(options.get("slow"));
+        if ((sensorCount <= 0) || (rate <= 0) || (rate > 1000) || (listenerCount < 0) || (slow > listenerCount))
+            throw new IllegalArgumentException("invalid sensors, rate, listeners or slow");
+        // Keeps the report readable: startup messages and, above all, every simulated failure are logged.
+        UOSLogging.getLogger().setLevel(Level.OFF);
+
+        Map<String, Sensor> sensors = new HashMap<>();
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < sensorCount; ++i) {
+            String id = "s" + i;
+            sensors.put(id, new Sensor(id, rate));
+            ids.append(i == 0 ? "" : ",").append(id);
+        }
+        SimulatedGateway gateway = new SimulatedGateway((id, ts) -> {
+            Sensor sensor = sensors.get(id);
+            return sensor == null ? 0 : sensor.ingestNanos(ts);
+        });
+
+        InitialProperties props = new InitialProperties();
+        props.put(IMUDriver.VALID_IDS_KEY, ids.toString());
+        props.put(IMUDriver.MIN_UPDATE_INTERVAL_KEY, Integer.parseInt(options.get("step")));
+        props.put(IMUDriver.SENSITIVITY_KEY, Double.parseDouble(options.get("sensitivity")));
+        props.put(IMUDriver.JMX_KEY, false);
+        props.put(IMUDriver.STORE_KEY, false);
+        IMUDriver driver = new IMUDriver();
+        driver.init(gateway.getGateway(), props, "harness");
+
+        String eventKey = Boolean.parseBoolean(options.get("batch")) ?
+                IMUDriver.CHANGE_BATCH_EVENT_NAME : IMUDriver.CHANGE_EVENT_NAME;
+        for (int i = 0; i < listenerCount; ++i) {
+            String name = "listener-" + i;
+            gateway.addListener(name,
+                    Double.parseDouble(options.get(i < slow ? "slowLatency" : "latency")),
+                    Double.parseDouble(options.get("jitter")), Double.parseDouble(options.get("failureRate")));
+            Call call = new Call(IMUDriver.DRIVER_NAME, "registerListener");
+            call.addParameter(IMUDriver.EVENT_KEY_PARAM_NAME, eventKey);
+            Response response = new Response();
+            driver.registerListener(call, response, new Caller(name));
+            if (response.getError() != null)
+                throw new IllegalStateException("failed to register " + name + ": " + response.getError());
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (Sensor sensor : sensors.values()) {
+            Thread thread = new Thread(() -> sensor.run(driver, start), "harness-" + sensor.id);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        TimeUnit.MILLISECONDS.sleep((long) (Double.parseDouble(options.get("warmup")) * 1000));
+        long offered = 0;
+        for (Sensor sensor : sensors.values())
+            offered -= sensor.getOffered();
+        for (SimulatedGateway.Listener listener : gateway.getListeners())
+            listener.reset();
+        long measureStart = System.nanoTime();
+        TimeUnit.MILLISECONDS.sleep((long) (Double.parseDouble(options.get("duration")) * 1000));
+        for (Sensor sensor : sensors.values())
+            offered += sensor.getOffered();
+        long elapsed = System.nanoTime() - measureStart;
+        report(options, gateway, offered, elapsed);
+
+        for (Thread thread : threads)
+            thread.interrupt();
+        for (Thread thread : threads)
+            thread.join();
+        driver.destroy();
+    }
+
+    private static void report(Map<String, String> options, SimulatedGateway gateway, long offered, long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println("Options: " + options);
+        System.out.printf("Ingest: %d samples, %.0f samples/s%n", offered, offered / seconds);
+        System.out.printf("%-14s %10s %12s %8s %10s %10s %10s %10s%n",
+                "listener", "delivered", "samples/s", "failed", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        List<long[]> all = new ArrayList<>();
+        int total = 0;
+        List<SimulatedGateway.Listener> listeners = new ArrayList<>(gateway.getListeners());
+        listeners.sort((a, b) -> a.getName().compareTo(b.getName()));
+        long failed = 0;
+        for (SimulatedGateway.Listener listener : listeners) {
+            long[] latencies = listener.getLatencies();
+            all.add(latencies);
+            total += latencies.length;
+            failed += listener.getFailed();
+            printRow(listener.getName(), latencies, listener.getFailed(), seconds);
+        }
+        long[] merged = new long[total];
+        int pos = 0;
+        for (long[] latencies : all) {
+            System.arraycopy(latencies, 0, merged, pos, latencies.length);
+            pos += latencies.length;
+        }
+        Arrays.sort(merged);
+        printRow("all", merged, failed, seconds);
+    }
+
+    private static void printRow(String name, long[] latencies, long failed, double seconds) {
+        System.out.printf("%-14s %10d %12.0f %8d %10.3f %10.3f %10.3f %10.3f%n", name, latencies.length,
+                latencies.length / seconds, failed,
+                SimulatedGateway.toMillis(SimulatedGateway.percentile(latencies, 0.5)),
+                SimulatedGateway.toMillis(SimulatedGateway.percentile(latencies, 0.99)),
+                SimulatedGateway.toMillis(SimulatedGateway.percentile(latencies, 0.999)),
+                SimulatedGateway.toMillis(SimulatedGateway.percentile(latencies, 1)));
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> e : OPTIONS.entrySet())
+            options.put(e.getKey(), e.getValue()[0]);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if ((eq < 0) || !OPTIONS.containsKey(arg.substring(0, eq)))
+                return null;
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    /**
+     * A sensor rotating steadily about the vertical axis, which remembers when it handed over its recent
+     * samples, by timestamp.
+     */
+    private static final class Sensor {
+        private static final int HISTORY = 1 << 13;
+        private static final int MASK = HISTORY - 1;
+
+        final String id;
+        private final int rate;
+        private final AtomicLongArray timestamps = new AtomicLongArray(HISTORY);
+        private final AtomicLongArray nanos = new AtomicLongArray(HISTORY);
+        private volatile long offered = 0;
+
+        Sensor(String id, int rate) {
+            this.id = id;
+            this.rate = rate;
+        }
+
+        long getOffered() {
+            return offered;
+        }
+
+        long ingestNanos(long timestamp) {
+            int slot = (int) (timestamp & MASK);
+            long ingest = nanos.get(slot);
+            return timestamps.get(slot) == timestamp ? ingest : 0;
+        }
+
+        void run(IMUDriver driver, long start) {
+            int handle = driver.getSensorHandle(id);
+            long base = System.currentTimeMillis();
+            for (long k = 0; !Thread.currentThread().isInterrupted(); ++k) {
+                long due = start + k * 1000000000L / rate;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                }
+                long ts = base + k * 1000 / rate;
+                double angle = 2 * Math.PI * (k % rate) / rate;
+                int slot = (int) (ts & MASK);
+                timestamps.set(slot, ts);
+                nanos.set(slot, System.nanoTime());
+                try {
+                    driver.sensorChanged(handle, ts, Math.cos(angle / 2), 0, 0, Math.sin(angle / 2));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                offered = k + 1;
+            }
+        }
+    }
+
+    /**
+     * The context of a call made by a simulated listener.
+     */
+    private static final class Caller extends CallContext {
+        private final UpDevice device;
+        private final NetworkDevice networkDevice;
+
+        Caller(String name) {
+            device = new UpDevice(name);
+            networkDevice = new NetworkDevice() {
+                @Override
+                public String getNetworkDeviceName() {
+                    return "harness:" + name;
+                }
+
+                @Override
+                public String getNetworkDeviceType() {
+                    return "harness";
+                }
+            };
+        }
+
+        @Override
+        public UpDevice getCallerDevice() {
+            return device;
+        }
+
+        @Override
+        public NetworkDevice getCallerNetworkDevice() {
+            return networkDevice;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.unbiquitous.unbihealth.imu.record.DoubleMedianFilter;
+import org.unbiquitous.unbihealth.imu.record.MedianFilter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the generic {@link MedianFilter} with {@link DoubleMedianFilter} for several window sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MedianFilterBenchmark {
+    @Param({"3", "9", "31", "101"})
+    public int k;
+
+    private SensorDataSet data;
+    private MedianFilter<Double> generic;
+    private DoubleMedianFilter primitive;
+    private int i = 0;
+
+    @Setup
+    public void setUp() {
+        data = new SensorDataSet();
+        generic = MedianFilter.create(Double.class, k);
+        primitive = DoubleMedianFilter.create(k);
+    }
+
+    @Benchmark
+    public Double generic() {
+        return generic.sample(data.x(i++));
+    }
+
+    @Benchmark
+    public double primitive() {
+        return primitive.sample(data.x(i++));
+    }
+}
@@ -0,0 +1,63 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.unbiquitous.unbihealth.imu.util.QuaternionUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the interpolation of consecutive samples: component-wise, normalized and spherical, the last
+ * two both allocating and into a reused array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuaternionUtilsBenchmark {
+    private SensorDataSet data;
+    private final double[] out = new double[4];
+    private int i = 0;
+
+    @Setup
+    public void setUp() {
+        data = new SensorDataSet();
+    }
+
+    @Benchmark
+    public Quaternion interpolate() {
+        Quaternion from = data.quaternion(i++);
+        return QuaternionUtils.interpolate(from, data.quaternion(i), 0.4);
+    }
+
+    @Benchmark
+    public Quaternion slerp() {
+        Quaternion from = data.quaternion(i++);
+        return QuaternionUtils.slerp(from, data.quaternion(i), 0.4);
+    }
+
+    @Benchmark
+    public double[] slerpPrimitive() {
+        int j = i++;
+        QuaternionUtils.slerp(data.w(j), data.x(j), data.y(j), data.z(j), data.w(i), data.x(i), data.y(i), data.z(i), 0.4, out);
+        return out;
+    }
+
+    @Benchmark
+    public double[] nlerpPrimitive() {
+        int j = i++;
+        QuaternionUtils.nlerp(data.w(j), data.x(j), data.y(j), data.z(j), data.w(i), data.x(i), data.y(i), data.z(i), 0.4, out);
+        return out;
+    }
+}
@@ -0,0 +1,59 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.record.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Recorder#add} on 100 Hz data with the default 16 ms step, with and without
+ * interpolation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecorderBenchmark {
+    @Param({"false", "true"})
+    public boolean interpolate;
+
+    @Param({"3", "31"})
+    public int filterSize;
+
+    private SensorDataSet data;
+    private Recorder recorder;
+    private long timestamp;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new SensorDataSet();
+    }
+
+    @Setup(Level.Iteration)
+    public void newRecorder() {
+        recorder = new Recorder("bench", IMUDriver.DEFAULT_STEP_TIME, interpolate, filterSize);
+        timestamp = 0;
+        i = 0;
+    }
+
+    @Benchmark
+    public void add() {
+        timestamp += SensorDataSet.PERIOD;
+        recorder.add(timestamp, data.quaternion(i++));
+    }
+}
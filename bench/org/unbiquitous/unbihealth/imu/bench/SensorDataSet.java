@@ -0,0 +1,108 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.apache.commons.math3.complex.Quaternion;
+
+import java.util.Random;
+
+/**
+ * Synthetic but realistic body-worn IMU data: a limb swinging back and forth around a slowly drifting
+ * axis at 100 Hz, with a little sensor noise. Samples are precomputed, so generating them doesn't count
+ * in any benchmark.
+ */
+public final class SensorDataSet {
+    public static final int DEFAULT_SIZE = 4096;
+    public static final long PERIOD = 10;
+
+    private final long[] timestamps;
+    private final double[] w, x, y, z;
+    private final Quaternion[] quaternions;
+
+    public SensorDataSet() {
+        this(DEFAULT_SIZE, 42);
+    }
+
+    public SensorDataSet(int size, long seed) {
+        Random random = new Random(seed);
+        timestamps = new long[size];
+        w = new double[size];
+        x = new double[size];
+        y = new double[size];
+        z = new double[size];
+        quaternions = new Quaternion[size];
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < size; ++i) {
+            double t = i * PERIOD / 1000.0;
+            // Swings about 60 degrees at 1 Hz, around an axis drifting over a few seconds.
+            double angle = Math.toRadians(60) * Math.sin(2 * Math.PI * t);
+            double ax = Math.cos(0.2 * t), ay = Math.sin(0.2 * t), az = 0.3;
+            double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+            double s = Math.sin(angle / 2);
+            Quaternion q = new Quaternion(
+                    Math.cos(angle / 2) + noise(random),
+                    s * ax / norm + noise(random),
+                    s * ay / norm + noise(random),
+                    s * az / norm + noise(random)
+            ).normalize();
+
+            timestamps[i] = start + i * PERIOD;
+            w[i] = q.getQ0();
+            x[i] = q.getQ1();
+            y[i] = q.getQ2();
+            z[i] = q.getQ3();
+            quaternions[i] = q;
+        }
+    }
+
+    private static double noise(Random random) {
+        return random.nextGaussian() * 0.002;
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    public long timestamp(int i) {
+        return timestamps[i % timestamps.length];
+    }
+
+    public double w(int i) {
+        return w[i % w.length];
+    }
+
+    public double x(int i) {
+        return x[i % x.length];
+    }
+
+    public double y(int i) {
+        return y[i % y.length];
+    }
+
+    public double z(int i) {
+        return z[i % z.length];
+    }
+
+    public Quaternion quaternion(int i) {
+        return quaternions[i % quaternions.length];
+    }
+
+    public long[] timestamps() {
+        return timestamps;
+    }
+
+    public double[] w() {
+        return w;
+    }
+
+    public double[] x() {
+        return x;
+    }
+
+    public double[] y() {
+        return y;
+    }
+
+    public double[] z() {
+        return z;
+    }
+}
@@ -0,0 +1,89 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.Sample;
+import org.unbiquitous.unbihealth.imu.SensorData;
+import org.unbiquitous.unbihealth.imu.record.ChunkedSampleStore;
+import org.unbiquitous.unbihealth.imu.util.SampleCodec;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the (de)serialization of single samples, through the quaternion (de)serializer pair, and of
+ * whole recordings, through the client-side extraction helpers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1000"})
+    public int recordingSize;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private SensorData sensorData;
+    private String sensorDataJson;
+    private Notify notify;
+    private String recordingJson;
+    private String recordingBinary;
+
+    @Setup
+    public void setUp() throws IOException {
+        SensorDataSet data = new SensorDataSet();
+        sensorData = new SensorData();
+        sensorData.setId("0");
+        sensorData.setTimestamp(data.timestamp(0));
+        sensorData.setQuaternion(data.quaternion(0));
+        sensorDataJson = mapper.writeValueAsString(sensorData);
+        notify = new Notify(IMUDriver.CHANGE_EVENT_NAME, IMUDriver.DRIVER_NAME, "bench");
+        notify.addParameter(IMUDriver.CHANGE_NEW_DATA_PARAM_NAME, sensorDataJson);
+
+        ChunkedSampleStore store = new ChunkedSampleStore();
+        for (int i = 0; i < recordingSize; ++i)
+            store.add(data.timestamp(i), data.w(i), data.x(i), data.y(i), data.z(i));
+        recordingJson = mapper.writeValueAsString(store.asList());
+        recordingBinary = SampleCodec.encodeRecording(store);
+    }
+
+    @Benchmark
+    public String serializeSensorData() throws IOException {
+        return mapper.writeValueAsString(sensorData);
+    }
+
+    @Benchmark
+    public SensorData deserializeSensorData() throws IOException {
+        return mapper.readValue(sensorDataJson, SensorData.class);
+    }
+
+    @Benchmark
+    public SensorData extractSensorData() throws IOException {
+        return IMUDriver.extractSensorData(notify);
+    }
+
+    @Benchmark
+    public List<Sample> extractRecordedData() throws IOException {
+        return IMUDriver.extractRecordedData(recordingJson);
+    }
+
+    @Benchmark
+    public List<Sample> extractRecordedDataBinary() {
+        return SampleCodec.decodeSamples(recordingBinary);
+    }
+}
@@ -0,0 +1,196 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.SensorData;
+import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
+import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in for a smartspace full of listeners. Every listener is identified by its device name
+ * and simulates a network peer: each notification takes a configurable latency, plus a random jitter, and fails
+ * with a configurable probability. Delivered samples are timed from the moment they were handed over to the
+ * driver, as told by a {@link Clock}, to the moment the simulated delivery completes.
+ * <p>
+ * Notifications to the driver's default target, with no device, are only counted.
+ */
+public final class SimulatedGateway implements StubGateway.Target {
+    /**
+     * Tells when a sample was handed over to the driver.
+     */
+    public interface Clock {
+        /**
+         * @param sensorId  The sample's sensor id.
+         * @param timestamp The sample's timestamp.
+         * @return When the sample was handed over to the driver, as given by {@link System#nanoTime()}, or
+         * zero if unknown.
+         */
+        long ingestNanos(String sensorId, long timestamp);
+    }
+
+    private final Clock clock;
+    private final StubGateway stub = new StubGateway(this);
+    private final Map<String, Listener> listeners = new ConcurrentHashMap<>();
+    private final LongAdder unaddressed = new LongAdder();
+
+    public SimulatedGateway(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return The gateway to hand over to the driver.
+     */
+    public Gateway getGateway() {
+        return stub.getGateway();
+    }
+
+    /**
+     * Adds a simulated listener. It still has to register itself with the driver.
+     *
+     * @param name        The listener's device name.
+     * @param latency     How long each notification takes, in milliseconds.
+     * @param jitter      The maximum random time added to the latency, in milliseconds.
+     * @param failureRate The probability of a notification failing, from 0 to 1.
+     * @return The listener.
+     */
+    public Listener addListener(String name, double latency, double jitter, double failureRate) {
+        Listener listener = new Listener(name, latency, jitter, failureRate);
+        listeners.put(name, listener);
+        return listener;
+    }
+
+    public Collection<Listener> getListeners() {
+        return listeners.values();
+    }
+
+    /**
+     * @return How many notifications were sent to the default target.
+     */
+    public long getUnaddressed() {
+        return unaddressed.sum();
+    }
+
+    @Override
+    public void notify(Notify notify, UpDevice device) throws NotifyException {
+        Listener listener = device == null ? null : listeners.get(device.getName());
+        if (listener == null)
+            unaddressed.increment();
+        else
+            listener.receive(notify);
+    }
+
+    /**
+     * A simulated listener and the latencies of the samples delivered to it.
+     */
+    public final class Listener {
+        private final String name;
+        private final long latency;
+        private final long jitter;
+        private final double failureRate;
+        private final LongAdder failed = new LongAdder();
+        private long[] latencies = new long[1 << 16];
+        private int size = 0;
+
+        Listener(String name, double latency, double jitter, double failureRate) {
+            this.name = name;
+            this.latency = (long) (latency * 1e6);
+            this.jitter = (long) (jitter * 1e6);
+            this.failureRate = failureRate;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return How many notifications failed.
+         */
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        /**
+         * @return How many samples were delivered.
+         */
+        public synchronized int getDelivered() {
+            return size;
+        }
+
+        /**
+         * @return The ingest to delivery latencies of every delivered sample, in nanoseconds, sorted.
+         */
+        public synchronized long[] getLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /**
+         * Forgets every delivered sample and failure, to start measuring after a warm up.
+         */
+        public synchronized void reset() {
+            size = 0;
+            failed.reset();
+        }
+
+        void receive(Notify notify) throws NotifyException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = latency + (jitter > 0 ? random.nextLong(jitter + 1) : 0);
+            long deadline = System.nanoTime() + delay;
+            while (delay > 0) {
+                LockSupport.parkNanos(delay);
+                delay = deadline - System.nanoTime();
+            }
+            if (random.nextDouble() < failureRate) {
+                failed.increment();
+                throw new NotifyException("simulated failure of " + name);
+            }
+
+            long now = System.nanoTime();
+            Object data = notify.getParameter(IMUDriver.CHANGE_NEW_DATA_PARAM_NAME);
+            if (data instanceof SensorData)
+                record((SensorData) data, now);
+            data = notify.getParameter(IMUDriver.CHANGE_BATCH_DATA_PARAM_NAME);
+            if (data instanceof List) {
+                for (Object sample : (List<?>) data)
+                    record((SensorData) sample, now);
+            }
+        }
+
+        private synchronized void record(SensorData data, long now) {
+            long ingest = clock.ingestNanos(data.getId(), data.getTimestamp());
+            if (ingest == 0)
+                return;
+            if (size == latencies.length)
+                latencies = Arrays.copyOf(latencies, size * 2);
+            latencies[size++] = now - ingest;
+        }
+    }
+
+    /**
+     * @param sorted Sorted values.
+     * @param p      The percentile, from 0 to 1.
+     * @return The value at the given percentile or zero, if there are no values.
+     */
+    public static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,76 @@
+package org.unbiquitous.unbihealth.imu.bench;
+
+import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
+import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process stand-in for the uOS {@link Gateway}. Only {@link Gateway#notify(Notify, UpDevice)} is
+ * supported, and it's forwarded to a {@link Target}; anything else throws
+ * {@link UnsupportedOperationException}. By default, notifications are only counted, so benchmarks
+ * measure the driver alone.
+ */
+public final class StubGateway implements InvocationHandler {
+    /**
+     * Receives the notifications sent through the gateway.
+     */
+    public interface Target {
+        void notify(Notify notify, UpDevice device) throws NotifyException;
+    }
+
+    private final Target target;
+    private final LongAdder notified = new LongAdder();
+    private final Gateway gateway;
+
+    public StubGateway() {
+        this(null);
+    }
+
+    /**
+     * @param target Where to forward notifications or null to only count them.
+     */
+    public StubGateway(Target target) {
+        this.target = target;
+        this.gateway = (Gateway) Proxy.newProxyInstance(Gateway.class.getClassLoader(),
+                new Class<?>[]{Gateway.class}, this);
+    }
+
+    /**
+     * @return The gateway to hand over to the driver.
+     */
+    public Gateway getGateway() {
+        return gateway;
+    }
+
+    /**
+     * @return How many notifications were sent through the gateway.
+     */
+    public long getNotified() {
+        return notified.sum();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            try {
+                return method.invoke(this, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        if ("notify".equals(method.getName()) && (args != null) && (args.length == 2)) {
+            notified.increment();
+            if (target != null)
+                target.notify((Notify) args[0], (UpDevice) args[1]);
+            return null;
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+}
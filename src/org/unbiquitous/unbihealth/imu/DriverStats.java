@@ -0,0 +1,83 @@
+package org.unbiquitous.unbihealth.imu;
+
+import org.unbiquitous.unbihealth.imu.dispatch.Dispatcher;
+import org.unbiquitous.unbihealth.imu.record.RecordingCache;
+import org.unbiquitous.unbihealth.imu.stats.IMUDriverStatsMXBean;
+import org.unbiquitous.unbihealth.imu.stats.ListenerSnapshot;
+import org.unbiquitous.unbihealth.imu.stats.SensorSnapshot;
+import org.unbiquitous.unbihealth.imu.stats.SensorStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Gathers the statistics of a driver instance, both for the getStats service and for JMX.
+ */
+final class DriverStats implements IMUDriverStatsMXBean {
+    private final Collection<SensorState> sensors;
+    private final Dispatcher dispatcher;
+    private final RecordingCache finishedRecordings;
+
+    DriverStats(Collection<SensorState> sensors, Dispatcher dispatcher, RecordingCache finishedRecordings) {
+        this.sensors = sensors;
+        this.dispatcher = dispatcher;
+        this.finishedRecordings = finishedRecordings;
+    }
+
+    @Override
+    public List<SensorSnapshot> getSensors() {
+        List<SensorSnapshot> snapshots = new ArrayList<>(sensors.size());
+        for (SensorState state : sensors) {
+            boolean recording;
+            int recordSize;
+            synchronized (state) {
+                recording = state.recorder != null;
+                recordSize = recording ? state.recorder.getStore().size() : 0;
+            }
+            SensorStats stats = state.stats;
+            snapshots.add(new SensorSnapshot(state.id, stats.getReceived(), stats.getThrottled(),
+                    stats.getSuppressed(), stats.getNotified(), stats.getLate(), recording, recordSize));
+        }
+        return snapshots;
+    }
+
+    @Override
+    public List<ListenerSnapshot> getListeners() {
+        return dispatcher.getListenerStats();
+    }
+
+    @Override
+    public long getDispatchDropped() {
+        return dispatcher.getDropped();
+    }
+
+    @Override
+    public int getDispatchQueued() {
+        return dispatcher.getQueued();
+    }
+
+    @Override
+    public long getRecordingMemory() {
+        return getActiveRecordingMemory() + finishedRecordings.getMemoryUsage();
+    }
+
+    @Override
+    public int getCachedRecordings() {
+        return finishedRecordings.size();
+    }
+
+    /**
+     * @return How much heap the active recordings take, in bytes.
+     */
+    long getActiveRecordingMemory() {
+        long total = 0;
+        for (SensorState state : sensors) {
+            synchronized (state) {
+                if (state.recorder != null)
+                    total += state.recorder.getStore().getMemoryUsage();
+            }
+        }
+        return total;
+    }
+}
@@ -4,12 +4,29 @@ import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.complex.Quaternion;
-import org.apache.commons.math3.exception.ZeroException;
+import org.apache.commons.math3.util.Precision;
+import org.unbiquitous.unbihealth.imu.dispatch.Dispatcher;
+import org.unbiquitous.unbihealth.imu.dispatch.ListenerOptions;
+import org.unbiquitous.unbihealth.imu.dispatch.OverflowPolicy;
+import org.unbiquitous.unbihealth.imu.dispatch.Subscription;
+import org.unbiquitous.unbihealth.imu.record.ChunkedSampleStore;
+import org.unbiquitous.unbihealth.imu.record.CompressedSampleStore;
+import org.unbiquitous.unbihealth.imu.record.MappedSampleStore;
 import org.unbiquitous.unbihealth.imu.record.Recorder;
+import org.unbiquitous.unbihealth.imu.record.RecordingCache;
+import org.unbiquitous.unbihealth.imu.record.ReorderBuffer;
+import org.unbiquitous.unbihealth.imu.record.SampleArrays;
+import org.unbiquitous.unbihealth.imu.record.SampleRing;
+import org.unbiquitous.unbihealth.imu.record.SampleStore;
+import org.unbiquitous.unbihealth.imu.shm.ShmRingWriter;
+import org.unbiquitous.unbihealth.imu.stats.IMUDriverStatsMXBean;
+import org.unbiquitous.unbihealth.imu.store.RecordingInfo;
+import org.unbiquitous.unbihealth.imu.store.RecordingStore;
+import org.unbiquitous.unbihealth.imu.util.SampleCodec;
+import org.unbiquitous.unbihealth.imu.util.SampleJson;
 import org.unbiquitous.uos.core.InitialProperties;
 import org.unbiquitous.uos.core.UOSLogging;
 import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
-import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
 import org.unbiquitous.uos.core.applicationManager.CallContext;
 import org.unbiquitous.uos.core.driverManager.UosDriver;
 import org.unbiquitous.uos.core.driverManager.UosEventDriver;
@@ -22,14 +39,32 @@ import org.unbiquitous.uos.core.messageEngine.messages.Notify;
 import org.unbiquitous.uos.core.messageEngine.messages.Response;
 import org.unbiquitous.uos.core.network.model.NetworkDevice;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,12 +77,32 @@ public class IMUDriver implements UosEventDriver {
     public static final String TARE_NAME = "tare";
     public static final String CHANGE_EVENT_NAME = "change";
     public static final String CHANGE_NEW_DATA_PARAM_NAME = "newData";
+    public static final String CHANGE_BATCH_EVENT_NAME = "changeBatch";
+    public static final String CHANGE_BATCH_DATA_PARAM_NAME = "batchData";
+    public static final String EVENT_KEY_PARAM_NAME = "eventKey";
     public static final String START_RECORD_NAME = "startRecording";
     public static final String STOP_RECORD_NAME = "stopRecording";
+    public static final String FETCH_RECORD_NAME = "fetchRecording";
+    public static final String CURSOR_PARAM_NAME = "cursor";
+    public static final String MAX_SAMPLES_PARAM_NAME = "maxSamples";
+    public static final int DEFAULT_MAX_SAMPLES = 1000;
+    public static final String RECORD_COMPLETE_PARAM_NAME = "complete";
     public static final String SENSOR_ID_PARAM_NAME = "sensorId";
     public static final String STEP_TIME_PARAM_NAME = "stepTime";
     public static final String INTERPOLATE_PARAM_NAME = "interpolate";
     public static final int DEFAULT_STEP_TIME = 16;
+    public static final String FILTER_SIZE_PARAM_NAME = "filterSize";
+    public static final int DEFAULT_FILTER_SIZE = 3;
+    public static final String STORAGE_PARAM_NAME = "storage";
+    public static final String MEMORY_STORAGE = "memory";
+    public static final String MAPPED_STORAGE = "mapped";
+    public static final String RECORD_FILE_PARAM_NAME = "recordFile";
+    public static final String RECORD_SIZE_PARAM_NAME = "recordSize";
+    public static final String RECORD_FILE_EXTENSION = ".rec";
+    public static final String RAW_RECORD_FILE_EXTENSION = ".raw";
+    public static final String FORMAT_PARAM_NAME = "format";
+    public static final String JSON_FORMAT = "json";
+    public static final String BINARY_FORMAT = "binary";
     public static final String RECORD_ID_PARAM_NAME = "recordId";
     public static final String RECORD_DATA_PARAM_NAME = "recordData";
     public static final String DEFAULT_SENSOR_ID_KEY = "imudriver.defaultsensorid";
@@ -57,38 +112,160 @@ public class IMUDriver implements UosEventDriver {
     public static final double DEFAULT_SENSITIVITY = 0.0;
     public static final String MIN_UPDATE_INTERVAL_KEY = "imudriver.step";
     public static final int DEFAULT_MIN_UPDATE_INTERVAL = 10;
+    public static final String OVERFLOW_PARAM_NAME = "overflow";
+    public static final String TIMEOUT_PARAM_NAME = "timeout";
+    public static final String BATCH_SIZE_PARAM_NAME = "batchSize";
+    public static final String BATCH_LATENCY_PARAM_NAME = "batchLatency";
+    public static final String SENSOR_IDS_PARAM_NAME = "sensorIds";
+    public static final String MAX_RATE_PARAM_NAME = "maxRate";
+    public static final String DISPATCH_CAPACITY_KEY = "imudriver.dispatch.capacity";
+    public static final int DEFAULT_DISPATCH_CAPACITY = 1024;
+    public static final String DISPATCH_OVERFLOW_KEY = "imudriver.dispatch.overflow";
+    public static final OverflowPolicy DEFAULT_DISPATCH_OVERFLOW = OverflowPolicy.DROP_OLDEST;
+    public static final String LISTENER_CAPACITY_KEY = "imudriver.listener.capacity";
+    public static final int DEFAULT_LISTENER_CAPACITY = 256;
+    public static final String LISTENER_OVERFLOW_KEY = "imudriver.listener.overflow";
+    public static final OverflowPolicy DEFAULT_LISTENER_OVERFLOW = OverflowPolicy.DROP_OLDEST;
+    public static final String LISTENER_TIMEOUT_KEY = "imudriver.listener.timeout";
+    public static final int DEFAULT_LISTENER_TIMEOUT = 1000;
+    public static final String BATCH_SIZE_KEY = "imudriver.batch.size";
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final String BATCH_LATENCY_KEY = "imudriver.batch.latency";
+    public static final int DEFAULT_BATCH_LATENCY = 100;
+    public static final String RECORD_DIR_KEY = "imudriver.record.dir";
+    public static final String RECORD_COMPRESS_KEY = "imudriver.record.compress";
+    public static final boolean DEFAULT_RECORD_COMPRESS = false;
+    public static final String RECORD_BUDGET_KEY = "imudriver.record.budget";
+    public static final int DEFAULT_RECORD_BUDGET = 64;
+    public static final String RECORD_TTL_KEY = "imudriver.record.ttl";
+    public static final int DEFAULT_RECORD_TTL = 3600000;
+    public static final String RECORD_MAX_DURATION_KEY = "imudriver.record.maxduration";
+    public static final int DEFAULT_RECORD_MAX_DURATION = 0;
+    public static final String RECORD_MAX_SAMPLES_KEY = "imudriver.record.maxsamples";
+    public static final int DEFAULT_RECORD_MAX_SAMPLES = 0;
+    public static final String RECORD_SPILL_KEY = "imudriver.record.spill";
+    public static final boolean DEFAULT_RECORD_SPILL = false;
+    public static final String RECORD_DELETE_FILES_KEY = "imudriver.record.deletefiles";
+    public static final boolean DEFAULT_RECORD_DELETE_FILES = false;
+    public static final String RECORDING_MEMORY_PARAM_NAME = "recordingMemory";
+    public static final String CACHED_RECORDINGS_PARAM_NAME = "cachedRecordings";
+    public static final String GET_STATS_NAME = "getStats";
+    public static final String SENSOR_STATS_PARAM_NAME = "sensors";
+    public static final String LISTENER_STATS_PARAM_NAME = "listeners";
+    public static final String DISPATCH_DROPPED_PARAM_NAME = "dispatchDropped";
+    public static final String DISPATCH_QUEUED_PARAM_NAME = "dispatchQueued";
+    public static final String JMX_KEY = "imudriver.jmx";
+    public static final boolean DEFAULT_JMX = true;
+    public static final String GET_HISTORY_NAME = "getHistory";
+    public static final String DURATION_PARAM_NAME = "duration";
+    public static final String PRE_TRIGGER_PARAM_NAME = "preTrigger";
+    public static final String HISTORY_DURATION_KEY = "imudriver.history.duration";
+    public static final int DEFAULT_HISTORY_DURATION = 5000;
+    public static final String HISTORY_CAPACITY_KEY = "imudriver.history.capacity";
+    public static final String HISTORY_RATE_KEY = "imudriver.history.rate";
+    public static final int DEFAULT_HISTORY_RATE = 200;
+    public static final String LIST_RECORDINGS_NAME = "listRecordings";
+    public static final String RECORDINGS_PARAM_NAME = "recordings";
+    public static final String QUERY_RECORDINGS_NAME = "queryRecordings";
+    public static final String FROM_PARAM_NAME = "from";
+    public static final String TO_PARAM_NAME = "to";
+    public static final String STORE_KEY = "imudriver.store";
+    public static final boolean DEFAULT_STORE = false;
+    public static final String STORE_DIR_KEY = "imudriver.store.dir";
+    public static final String STORE_RETENTION_KEY = "imudriver.store.retention";
+    public static final int DEFAULT_STORE_RETENTION = 604800000;
+    public static final String STORE_MAX_SIZE_KEY = "imudriver.store.maxsize";
+    public static final int DEFAULT_STORE_MAX_SIZE = 0;
+    public static final String SHM_KEY = "imudriver.shm";
+    public static final String SHM_CAPACITY_KEY = "imudriver.shm.capacity";
+    public static final int DEFAULT_SHM_CAPACITY = 65536;
+    public static final String REORDER_WINDOW_KEY = "imudriver.reorder.window";
+    public static final int DEFAULT_REORDER_WINDOW = 0;
+    public static final String REORDER_CAPACITY_KEY = "imudriver.reorder.capacity";
+    public static final int DEFAULT_REORDER_CAPACITY = 256;
 
     private static final UpDriver _driver = new UpDriver(DRIVER_NAME) {
         {
             addService(LIST_IDS_NAME);
             addService(GET_SENSITIVITY_NAME);
-            addService(TARE_NAME);
+            addService(TARE_NAME)
+                    .addParameter(SENSOR_ID_PARAM_NAME, UpService.ParameterType.OPTIONAL);
             addEvent(CHANGE_EVENT_NAME)
                     .addParameter(CHANGE_NEW_DATA_PARAM_NAME, UpService.ParameterType.MANDATORY);
+            addEvent(CHANGE_BATCH_EVENT_NAME)
+                    .addParameter(CHANGE_BATCH_DATA_PARAM_NAME, UpService.ParameterType.MANDATORY);
             addService(START_RECORD_NAME)
                     .addParameter(SENSOR_ID_PARAM_NAME, UpService.ParameterType.MANDATORY)
-                    .addParameter(STEP_TIME_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+                    .addParameter(STEP_TIME_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(INTERPOLATE_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(FILTER_SIZE_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(STORAGE_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(PRE_TRIGGER_PARAM_NAME, UpService.ParameterType.OPTIONAL);
             addService(STOP_RECORD_NAME)
                     .addParameter(SENSOR_ID_PARAM_NAME, UpService.ParameterType.MANDATORY)
-                    .addParameter(RECORD_ID_PARAM_NAME, UpService.ParameterType.MANDATORY);
+                    .addParameter(RECORD_ID_PARAM_NAME, UpService.ParameterType.MANDATORY)
+                    .addParameter(FORMAT_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(FETCH_RECORD_NAME)
+                    .addParameter(SENSOR_ID_PARAM_NAME, UpService.ParameterType.MANDATORY)
+                    .addParameter(RECORD_ID_PARAM_NAME, UpService.ParameterType.MANDATORY)
+                    .addParameter(CURSOR_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(MAX_SAMPLES_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(FORMAT_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(GET_STATS_NAME);
+            addService(GET_HISTORY_NAME)
+                    .addParameter(SENSOR_ID_PARAM_NAME, UpService.ParameterType.MANDATORY)
+                    .addParameter(DURATION_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(FORMAT_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(LIST_RECORDINGS_NAME)
+                    .addParameter(SENSOR_ID_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(QUERY_RECORDINGS_NAME)
+                    .addParameter(SENSOR_ID_PARAM_NAME, UpService.ParameterType.MANDATORY)
+                    .addParameter(FROM_PARAM_NAME, UpService.ParameterType.MANDATORY)
+                    .addParameter(TO_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(MAX_SAMPLES_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(FORMAT_PARAM_NAME, UpService.ParameterType.OPTIONAL);
         }
     };
     private static final Logger logger = UOSLogging.getLogger();
     private static final ObjectMapper mapper = new ObjectMapper();
     private static final JavaType ID_LIST_TYPE = mapper.getTypeFactory().constructParametrizedType(List.class, List.class, String.class);
     private static final JavaType SAMPLE_LIST_TYPE = mapper.getTypeFactory().constructParametrizedType(List.class, List.class, Sample.class);
+    private static final JavaType SENSOR_DATA_LIST_TYPE = mapper.getTypeFactory().constructParametrizedType(List.class, List.class, SensorData.class);
+
+    private static final long JANITOR_PERIOD = 1000;
+    // How long stopRecording waits for a recording the driver stopped on its own to be finished.
+    private static final long STOPPED_RECORDING_WAIT = 30000;
+    private static final int ACCEPTED = 0;
+    private static final int THROTTLED = 1;
+    private static final int SUPPRESSED = 2;
 
     private Gateway gateway;
     private String instanceId;
     private String defaultSensorId;
-    private Set<String> validIds = new HashSet<>();
-    private ConcurrentHashMap<UpNetworkInterface, UpDevice> listeners = new ConcurrentHashMap<UpNetworkInterface, UpDevice>();
-    private Quaternion refData = Quaternion.ZERO;
-    private Quaternion lastData = Quaternion.ZERO;
+    private Map<String, SensorState> sensors = new ConcurrentHashMap<>();
+    private SensorState[] states = new SensorState[0];
+    private Dispatcher dispatcher;
     private double sensitivity;
-    private long minUpdateInterval, lastUpdate = 0;
-    private Map<String, List<Sample>> lastRecordedData = new HashMap<>();
-    private Map<String, Recorder> recorders = new HashMap<>();
+    private long minUpdateInterval;
+    private long historyDuration;
+    private long reorderWindow;
+    private RecordingCache finishedRecordings;
+    // The recordings the driver stopped on its own, by record id, until their clients ask to stop them.
+    private final Map<String, StoppedRecording> stoppedRecordings = new ConcurrentHashMap<>();
+    private long recordTtl;
+    private Path recordDir;
+    private boolean compressRecordings;
+    private long recordBudget;
+    private long maxRecordDuration;
+    private int maxRecordSamples;
+    private ScheduledExecutorService janitor;
+    private ScheduledExecutorService flusher;
+    private RecordingStore recordingStore;
+    private long storeRetention;
+    private long storeMaxSize;
+    private ShmRingWriter ring;
+    private DriverStats stats;
+    private ObjectName statsName;
 
     /**
      * External systems shall call this method to notify the smartspace of
@@ -96,89 +273,479 @@ public class IMUDriver implements UosEventDriver {
      *
      * @param values The new sensor data.
      * @throws IOException
-     * @throws NotifyException
      */
-    public void sensorChanged(Quaternion values) throws IOException, NotifyException {
+    public void sensorChanged(Quaternion values) throws IOException {
         sensorChanged(values, null);
     }
 
     /**
      * External systems shall call this method to notify the smartspace of
      * sensor data changes.
+     * <p>
+     * The sample is stamped with its arrival time. Sensors that deliver samples late or out of order should
+     * pass their own timestamps to {@link #sensorChanged(String, long, double, double, double, double)} instead,
+     * along with a {@link #REORDER_WINDOW_KEY}.
      *
      * @param newData  The new sensor data.
      * @param sensorId The sensor id or null to use default.
      * @throws IOException
-     * @throws NotifyException
      */
     public void sensorChanged(Quaternion newData, String sensorId) throws IOException {
         if (newData == null)
             throw new NullPointerException("newValue");
+        sensorChanged(sensorId, System.currentTimeMillis(),
+                newData.getQ0(), newData.getQ1(), newData.getQ2(), newData.getQ3());
+    }
 
-        if (sensorId == null)
-            sensorId = defaultSensorId;
-        else if (!validIds.contains(sensorId))
-            throw new IllegalArgumentException("Invalid sensor id.");
+    /**
+     * External systems shall call this method to notify the smartspace of
+     * sensor data changes, given as the quaternion's components.
+     * <p>
+     * Samples held back by the minimum update interval or discarded by the sensitivity don't allocate
+     * anything; objects are only created when a change event has to be sent, now or when the latest held
+     * back sample is flushed.
+     *
+     * @param sensorId  The sensor id or null to use default.
+     * @param timestamp The sample's timestamp, in milliseconds.
+     * @param w         The new quaternion's real part.
+     * @param x         The new quaternion's i component.
+     * @param y         The new quaternion's j component.
+     * @param z         The new quaternion's k component.
+     * @throws IOException
+     * @see #sensorChanged(int, long, double, double, double, double)
+     */
+    public void sensorChanged(String sensorId, long timestamp, double w, double x, double y, double z)
+            throws IOException {
+        sensorChanged(getSensorHandle(sensorId), timestamp, w, x, y, z);
+    }
 
-        // Checks update frequency...
-        long cur = System.currentTimeMillis();
-        if ((cur - lastUpdate) < minUpdateInterval)
+    /**
+     * Same as {@link #sensorChanged(String, long, double, double, double, double)}, but identifies the sensor
+     * by its handle, so there's no id lookup.
+     *
+     * @param handle    The sensor's handle, as given by {@link #getSensorHandle(String)}.
+     * @param timestamp The sample's timestamp, in milliseconds.
+     * @param w         The new quaternion's real part.
+     * @param x         The new quaternion's i component.
+     * @param y         The new quaternion's j component.
+     * @param z         The new quaternion's k component.
+     * @throws IOException
+     * @throws IllegalArgumentException If the handle is not valid.
+     */
+    public void sensorChanged(int handle, long timestamp, double w, double x, double y, double z)
+            throws IOException {
+        SensorState state = getSensorState(handle);
+        state.stats.received();
+        if (state.reorder != null) {
+            List<SensorData> accepted;
+            synchronized (state) {
+                accepted = reorder(state, timestamp, w, x, y, z, null);
+            }
+            dispatchAccepted(state, accepted, 0, 0, 0);
             return;
-        lastUpdate = cur;
+        }
 
-        Quaternion normData;
-        try {
-            // Corrects for the axis, based on the calibration.
-            normData = new Quaternion(
-                    newData.getQ0(),
-                    newData.getQ1() - refData.getQ1(),
-                    newData.getQ2() - refData.getQ2(),
-                    newData.getQ3() - refData.getQ3()
-            ).normalize();
-        } catch (ZeroException e) {
-            normData = Quaternion.IDENTITY;
+        double nw, nx, ny, nz;
+        synchronized (state) {
+            switch (ingest(state, timestamp, w, x, y, z)) {
+                case THROTTLED:
+                    state.stats.throttled();
+                    return;
+                case SUPPRESSED:
+                    state.stats.suppressed();
+                    return;
+            }
+            nw = state.normW;
+            nx = state.normX;
+            ny = state.normY;
+            nz = state.normZ;
+            publish(state, timestamp);
+        }
+        state.stats.notified();
+
+        // Hands the data over to the dispatcher outside the lock.
+        doNotify(state.id, new Quaternion(nw, nx, ny, nz), timestamp);
+    }
+
+    /**
+     * External systems shall call this method to notify the smartspace of
+     * a burst of sensor data changes from a single sensor, given as parallel arrays.
+     * <p>
+     * The sensor is looked up and locked only once for the whole burst. Each sample is
+     * still corrected, recorded, checked for sensitivity and throttled on its own, using
+     * its own timestamp, and the accepted ones are dispatched together, in order.
+     *
+     * @param sensorId   The sensor id or null to use default.
+     * @param timestamps The samples' timestamps, in milliseconds, in ascending order.
+     * @param w          The quaternions' real parts.
+     * @param x          The quaternions' i components.
+     * @param y          The quaternions' j components.
+     * @param z          The quaternions' k components.
+     * @param offset     The position of the first sample in the arrays.
+     * @param length     How many samples to take from the arrays.
+     * @throws IOException
+     * @throws IndexOutOfBoundsException If the range is not within every array.
+     * @see #sensorChanged(int, long[], double[], double[], double[], double[], int, int)
+     */
+    public void sensorChanged(String sensorId, long[] timestamps, double[] w, double[] x, double[] y, double[] z,
+                              int offset, int length) throws IOException {
+        sensorChanged(getSensorHandle(sensorId), timestamps, w, x, y, z, offset, length);
+    }
+
+    /**
+     * Same as {@link #sensorChanged(String, long[], double[], double[], double[], double[], int, int)}, but
+     * identifies the sensor by its handle, so there's no id lookup.
+     *
+     * @param handle The sensor's handle, as given by {@link #getSensorHandle(String)}.
+     * @throws IOException
+     * @throws IllegalArgumentException  If the handle is not valid.
+     * @throws IndexOutOfBoundsException If the range is not within every array.
+     */
+    public void sensorChanged(int handle, long[] timestamps, double[] w, double[] x, double[] y, double[] z,
+                              int offset, int length) throws IOException {
+        int end = offset + length;
+        if ((offset < 0) || (length < 0) || (end > timestamps.length) || (end > w.length) || (end > x.length) ||
+                (end > y.length) || (end > z.length))
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length);
+        SensorState state = getSensorState(handle);
+
+        List<SensorData> accepted = null;
+        int throttled = 0, suppressed = 0;
+        synchronized (state) {
+            for (int i = offset; i < end; ++i) {
+                if (state.reorder != null) {
+                    accepted = reorder(state, timestamps[i], w[i], x[i], y[i], z[i], accepted);
+                    continue;
+                }
+                switch (ingest(state, timestamps[i], w[i], x[i], y[i], z[i])) {
+                    case THROTTLED:
+                        ++throttled;
+                        break;
+                    case SUPPRESSED:
+                        ++suppressed;
+                        break;
+                    default:
+                        if (accepted == null)
+                            accepted = new ArrayList<>(end - i);
+                        accepted.add(newSensorData(state, timestamps[i]));
+                        publish(state, timestamps[i]);
+                }
+            }
         }
+        dispatchAccepted(state, accepted, length, throttled, suppressed);
+    }
+
+    /**
+     * External systems shall call this method to notify the smartspace of
+     * a burst of sensor data changes from a single sensor, read from buffers.
+     * Every remaining timestamp is read, along with four components (w, x, y and z)
+     * per timestamp, and both buffers' positions are advanced past the read data.
+     *
+     * @param sensorId    The sensor id or null to use default.
+     * @param timestamps  The samples' timestamps, in milliseconds, in ascending order.
+     * @param quaternions The quaternions' components, interleaved as w, x, y and z.
+     * @throws IOException
+     * @throws IllegalArgumentException If there are less than four components per timestamp.
+     * @see #sensorChanged(String, long[], double[], double[], double[], double[], int, int)
+     * @see #sensorChanged(int, LongBuffer, DoubleBuffer)
+     */
+    public void sensorChanged(String sensorId, LongBuffer timestamps, DoubleBuffer quaternions) throws IOException {
+        sensorChanged(getSensorHandle(sensorId), timestamps, quaternions);
+    }
+
+    /**
+     * Same as {@link #sensorChanged(String, LongBuffer, DoubleBuffer)}, but identifies the sensor by its handle,
+     * so there's no id lookup.
+     *
+     * @param handle The sensor's handle, as given by {@link #getSensorHandle(String)}.
+     * @throws IOException
+     * @throws IllegalArgumentException If the handle is not valid or there are less than four components per
+     *                                  timestamp.
+     */
+    public void sensorChanged(int handle, LongBuffer timestamps, DoubleBuffer quaternions) throws IOException {
+        SensorState state = getSensorState(handle);
+        int length = timestamps.remaining();
+        if (quaternions.remaining() < 4L * length)
+            throw new IllegalArgumentException("missing quaternion components");
+
+        List<SensorData> accepted = null;
+        int throttled = 0, suppressed = 0;
+        int t = timestamps.position(), q = quaternions.position();
+        synchronized (state) {
+            for (int i = 0; i < length; ++i, q += 4) {
+                long timestamp = timestamps.get(t + i);
+                if (state.reorder != null) {
+                    accepted = reorder(state, timestamp, quaternions.get(q), quaternions.get(q + 1),
+                            quaternions.get(q + 2), quaternions.get(q + 3), accepted);
+                    continue;
+                }
+                switch (ingest(state, timestamp, quaternions.get(q), quaternions.get(q + 1), quaternions.get(q + 2),
+                        quaternions.get(q + 3))) {
+                    case THROTTLED:
+                        ++throttled;
+                        break;
+                    case SUPPRESSED:
+                        ++suppressed;
+                        break;
+                    default:
+                        if (accepted == null)
+                            accepted = new ArrayList<>(length - i);
+                        accepted.add(newSensorData(state, timestamp));
+                        publish(state, timestamp);
+                }
+            }
+        }
+        timestamps.position(t + length);
+        quaternions.position(q);
+        dispatchAccepted(state, accepted, length, throttled, suppressed);
+    }
+
+    /**
+     * Resolves a sensor id to its handle, a small integer that identifies the sensor in the handle based
+     * {@code sensorChanged} overloads with no lookup at all. Handles are assigned in {@link #init}, in the
+     * order of {@link #VALID_IDS_KEY}, starting from 0 for the initial default sensor, and never change.
+     *
+     * @param sensorId The sensor id or null to use default.
+     * @return The sensor's handle.
+     * @throws IllegalArgumentException If the sensor id is not valid.
+     */
+    public int getSensorHandle(String sensorId) {
+        SensorState state = sensors.get(sensorId == null ? defaultSensorId : sensorId);
+        if (state == null)
+            throw new IllegalArgumentException("Invalid sensor id.");
+        return state.handle;
+    }
+
+    private SensorState getSensorState(int handle) {
+        SensorState[] states = this.states;
+        if ((handle < 0) || (handle >= states.length))
+            throw new IllegalArgumentException("Invalid sensor handle.");
+        return states[handle];
+    }
+
+    /**
+     * Corrects, normalizes, records, checks the sensitivity of and throttles a single sample, leaving the
+     * normalized data in the state. Must be called holding the state's lock.
+     * <p>
+     * The history and the recorder see every sample; only notifications are throttled. A sample that arrives
+     * before the minimum update interval is over is held back, replacing any other held back sample, and is
+     * flushed once the interval is over, unless a newer sample is notified or suppressed first. So listeners
+     * always end up with the latest orientation, at a bounded rate.
+     *
+     * @return Either {@link #ACCEPTED}, {@link #THROTTLED} or {@link #SUPPRESSED}.
+     */
+    private int ingest(SensorState state, long timestamp, double w, double x, double y, double z) {
+        // Corrects for the axis, based on the calibration.
+        double nw = w, nx = x - state.refX, ny = y - state.refY, nz = z - state.refZ;
+        double norm = Math.sqrt(nw * nw + nx * nx + ny * ny + nz * nz);
+        if (norm < Precision.SAFE_MIN) {
+            nw = 1;
+            nx = ny = nz = 0;
+        } else {
+            nw /= norm;
+            nx /= norm;
+            ny /= norm;
+            nz /= norm;
+        }
+        state.normW = nw;
+        state.normX = nx;
+        state.normY = ny;
+        state.normZ = nz;
+
+        // Keeps the recent history, for pre-triggered recordings.
+        if (state.history != null)
+            state.history.add(timestamp, nw, nx, ny, nz);
 
         // If it's currently recording this sensor, notifies the recorder.
-        Recorder recorder = recorders.get(sensorId);
-        if (recorder != null)
-            recorder.add(cur, normData);
+        if (state.recorder != null)
+            record(state, timestamp, nw, nx, ny, nz);
+
+        // Verifies sensitivity. Listeners already have an orientation close enough to this one, so there's
+        // no point in flushing an older one.
+        if (maxOffset(w - state.lastW, x - state.lastX, y - state.lastY, z - state.lastZ) < sensitivity) {
+            state.pending = false;
+            return SUPPRESSED;
+        }
 
-        // Verifies sensitivity and notifies listeners if necessary.
-        if (maxOffset(newData, lastData) >= sensitivity) {
-            lastData = newData;
-            doNotify(sensorId, normData, cur);
+        // Checks update frequency...
+        if ((timestamp - state.lastUpdate) < minUpdateInterval) {
+            hold(state, timestamp, w, x, y, z);
+            return THROTTLED;
         }
+        state.pending = false;
+        state.lastUpdate = timestamp;
+        state.lastW = w;
+        state.lastX = x;
+        state.lastY = y;
+        state.lastZ = z;
+        return ACCEPTED;
     }
 
-    private static double maxOffset(Quaternion a, Quaternion b) {
-        Quaternion aux = a.subtract(b);
-        double max = Math.abs(aux.getQ0());
-        max = Math.max(Math.abs(aux.getQ1()), max);
-        max = Math.max(Math.abs(aux.getQ2()), max);
-        max = Math.max(Math.abs(aux.getQ3()), max);
-        return max;
+    /**
+     * Puts a raw sample in the sensor's reorder buffer, or discards it if it's late, and ingests the samples
+     * that are due, in timestamp order. Throttled, suppressed and late samples are counted right away. Must be
+     * called holding the state's lock.
+     *
+     * @param accepted The accepted samples so far, or null.
+     * @return The accepted samples, including any ingested now, or null if there are none.
+     */
+    private List<SensorData> reorder(SensorState state, long timestamp, double w, double x, double y, double z,
+                                     List<SensorData> accepted) {
+        state.lastArrival = System.nanoTime();
+        if (!state.reorder.add(timestamp, w, x, y, z)) {
+            state.stats.late();
+            return accepted;
+        }
+        accepted = release(state, false, accepted);
+        ScheduledExecutorService flusher = this.flusher;
+        if ((state.reorder.size() > 0) && !state.drainScheduled && (flusher != null)) {
+            try {
+                flusher.schedule(() -> drain(state), Math.max(1, reorderWindow), TimeUnit.MILLISECONDS);
+                state.drainScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // Destroyed.
+            }
+        }
+        return accepted;
     }
 
-    private void doNotify(String sensorId, Quaternion newValue, long timestamp) {
-        SensorData newSensorData = new SensorData();
-        newSensorData.setId(sensorId);
-        newSensorData.setQuaternion(newValue);
-        newSensorData.setTimestamp(timestamp);
-        Notify n = new Notify(CHANGE_EVENT_NAME, DRIVER_NAME, instanceId);
-        n.addParameter(CHANGE_NEW_DATA_PARAM_NAME, newSensorData);
+    /**
+     * Ingests the samples of the sensor's reorder buffer that are due, in timestamp order. Must be called
+     * holding the state's lock.
+     *
+     * @param all      Whether every sample is due, regardless of the window.
+     * @param accepted The accepted samples so far, or null.
+     * @return The accepted samples, including any ingested now, or null if there are none.
+     */
+    private List<SensorData> release(SensorState state, boolean all, List<SensorData> accepted) {
+        ReorderBuffer buffer = state.reorder;
+        int due = buffer.due(all);
+        for (int i = 0; i < due; ++i) {
+            long timestamp = buffer.getTimestamp(i);
+            switch (ingest(state, timestamp, buffer.getW(i), buffer.getX(i), buffer.getY(i), buffer.getZ(i))) {
+                case THROTTLED:
+                    state.stats.throttled();
+                    break;
+                case SUPPRESSED:
+                    state.stats.suppressed();
+                    break;
+                default:
+                    if (accepted == null)
+                        accepted = new ArrayList<>(due - i);
+                    accepted.add(newSensorData(state, timestamp));
+                    publish(state, timestamp);
+            }
+        }
+        buffer.remove(due);
+        return accepted;
+    }
 
-        notify(n, null);
-        for (UpDevice device : listeners.values())
-            notify(n, device);
+    /**
+     * Releases whatever is left in the sensor's reorder buffer once no sample arrived for a whole window, so a
+     * sensor that stops doesn't leave its last samples behind.
+     */
+    private void drain(SensorState state) {
+        synchronized (state) {
+            state.drainScheduled = false;
+            if (state.reorder.size() == 0)
+                return;
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - state.lastArrival);
+            if (idle < reorderWindow) {
+                try {
+                    flusher.schedule(() -> drain(state), reorderWindow - idle, TimeUnit.MILLISECONDS);
+                    state.drainScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    // Destroyed.
+                }
+                return;
+            }
+            // Dispatched holding the lock, like a flush. No sample arrived for a whole window, so the sensor's
+            // thread has had that long to dispatch anything it released before.
+            dispatchAccepted(state, release(state, true, null), 0, 0, 0);
+        }
     }
 
-    private void notify(Notify n, UpDevice device) {
+    /**
+     * Holds a throttled sample back, in place of any other, and makes sure a flush is scheduled for when the
+     * minimum update interval is over. Must be called holding the state's lock.
+     */
+    private void hold(SensorState state, long timestamp, double w, double x, double y, double z) {
+        state.pending = true;
+        state.pendingTimestamp = timestamp;
+        state.pendingW = w;
+        state.pendingX = x;
+        state.pendingY = y;
+        state.pendingZ = z;
+        ScheduledExecutorService flusher = this.flusher;
+        if (state.flushScheduled || (flusher == null))
+            return;
+        long delay = Math.max(1, Math.min(minUpdateInterval - (timestamp - state.lastUpdate), minUpdateInterval));
         try {
-            gateway.notify(n, device);
-        } catch (NotifyException e) {
-            logger.log(Level.SEVERE, "Failed to notify listener '" + device.getName() + "'.", e);
+            flusher.schedule(() -> flush(state), delay, TimeUnit.MILLISECONDS);
+            state.flushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // Destroyed.
+        }
+    }
+
+    /**
+     * Notifies the sample held back by the minimum update interval, if it's still the latest one.
+     */
+    private void flush(SensorState state) {
+        synchronized (state) {
+            state.flushScheduled = false;
+            if (!state.pending)
+                return;
+            state.pending = false;
+            long timestamp = state.pendingTimestamp;
+            state.lastUpdate = timestamp;
+            state.lastW = state.pendingW;
+            state.lastX = state.pendingX;
+            state.lastY = state.pendingY;
+            state.lastZ = state.pendingZ;
+            publish(state, timestamp);
+            // Dispatched holding the lock, so it can't overtake a newer sample from the sensor's thread.
+            dispatcher.dispatch(newSensorData(state, timestamp));
         }
+        state.stats.notified();
+    }
+
+    private static SensorData newSensorData(SensorState state, long timestamp) {
+        SensorData data = new SensorData();
+        data.setId(state.id);
+        data.setQuaternion(new Quaternion(state.normW, state.normX, state.normY, state.normZ));
+        data.setTimestamp(timestamp);
+        return data;
+    }
+
+    /**
+     * Publishes an accepted sample to the shared-memory ring, if enabled. Called with the sensor locked, so the
+     * ring holds each sensor's samples in order.
+     */
+    private void publish(SensorState state, long timestamp) {
+        ShmRingWriter ring = this.ring;
+        if (ring != null)
+            ring.publish(state.handle, timestamp, state.normW, state.normX, state.normY, state.normZ);
+    }
+
+    private void dispatchAccepted(SensorState state, List<SensorData> accepted, int received, int throttled,
+                                  int suppressed) {
+        int notified = accepted == null ? 0 : accepted.size();
+        state.stats.add(received, throttled, suppressed, notified);
+        if (notified > 0)
+            dispatcher.dispatchAll(accepted);
+    }
+
+    private static double maxOffset(double dw, double dx, double dy, double dz) {
+        return Math.max(Math.max(Math.abs(dw), Math.abs(dx)), Math.max(Math.abs(dy), Math.abs(dz)));
+    }
+
+    private void doNotify(String sensorId, Quaternion newValue, long timestamp) {
+        SensorData newSensorData = new SensorData();
+        newSensorData.setId(sensorId);
+        newSensorData.setQuaternion(newValue);
+        newSensorData.setTimestamp(timestamp);
+        dispatcher.dispatch(newSensorData);
     }
 
     /**
@@ -200,8 +767,8 @@ public class IMUDriver implements UosEventDriver {
     }
 
     /**
-     * Given a {@link Notify}, verifies if it's from IMUDriver and contains valid {@link SensorData}; if so,
-     * extracts and returns the data.
+     * Given a {@link Notify}, verifies if it's from IMUDriver and contains valid {@link SensorData}, either as JSON
+     * or in the {@link #BINARY_FORMAT}; if so, extracts and returns the data.
      *
      * @param n The notify to be parsed.
      * @return The extracted sensor data.
@@ -214,18 +781,58 @@ public class IMUDriver implements UosEventDriver {
         Object param = n.getParameter(CHANGE_NEW_DATA_PARAM_NAME);
         if (param == null)
             throw new IllegalArgumentException("Event data not present.");
-        SensorData data = (param instanceof String) ?
-                mapper.readValue((String) param, SensorData.class) :
-                mapper.convertValue(param, SensorData.class);
+        SensorData data;
+        if (isBinary(n.getParameter(FORMAT_PARAM_NAME)))
+            data = SampleCodec.decodeSensorData(param.toString());
+        else
+            data = (param instanceof String) ?
+                    mapper.readValue((String) param, SensorData.class) :
+                    mapper.convertValue(param, SensorData.class);
+        validate(data);
+        return data;
+    }
+
+    /**
+     * Given a {@link Notify}, verifies if it's an IMUDriver batch and contains a valid list of {@link SensorData},
+     * either as JSON or in the {@link #BINARY_FORMAT}; if so, extracts and returns the data.
+     *
+     * @param n The notify to be parsed.
+     * @return The extracted sensor data, in the order it was produced.
+     * @throws IllegalArgumentException If this is not a valid IMUDriver batch notify or any data is missing.
+     * @throws IOException              If there's any JSON parsing/conversion error.
+     */
+    public static List<SensorData> extractSensorDataBatch(Notify n) throws IOException {
+        if (!(DRIVER_NAME.equals(n.getDriver()) && CHANGE_BATCH_EVENT_NAME.equals(n.getEventKey())))
+            throw new IllegalArgumentException("This is not an IMUDriver batch notify.");
+        Object param = n.getParameter(CHANGE_BATCH_DATA_PARAM_NAME);
+        if (param == null)
+            throw new IllegalArgumentException("Event data not present.");
+        List<SensorData> batch;
+        if (isBinary(n.getParameter(FORMAT_PARAM_NAME)))
+            batch = SampleCodec.decodeSensorDataBatch(param.toString());
+        else
+            batch = (param instanceof String) ?
+                    mapper.<List<SensorData>>readValue((String) param, SENSOR_DATA_LIST_TYPE) :
+                    mapper.<List<SensorData>>convertValue(param, SENSOR_DATA_LIST_TYPE);
+        for (SensorData data : batch)
+            validate(data);
+        return batch;
+    }
+
+    private static boolean isBinary(Object format) {
+        return (format != null) && BINARY_FORMAT.equals(format.toString());
+    }
+
+    private static void validate(SensorData data) {
         if (StringUtils.isBlank(data.getId()))
             throw new IllegalArgumentException("sensor id must not be empty or null");
         if (data.getQuaternion() == null)
             throw new IllegalArgumentException("quaternion value must not be null");
-        return data;
     }
 
     /**
-     * Given a {@link Response}, verifies if it contains the param for the sample list and tries to retrieve it.
+     * Given a {@link Response}, verifies if it contains the param for the sample list and tries to retrieve it,
+     * either as JSON or in the {@link #BINARY_FORMAT}.
      *
      * @param resp The response to be processed.
      * @return The extracted data as a list of samples.
@@ -236,11 +843,63 @@ public class IMUDriver implements UosEventDriver {
         Object param = resp.getResponseData(RECORD_DATA_PARAM_NAME);
         if (param == null)
             throw new IllegalArgumentException("sample list not present");
+        if (isBinary(resp.getResponseData(FORMAT_PARAM_NAME)))
+            return new ArrayList<>(SampleCodec.decodeSamples(param.toString()));
         return param instanceof String ?
                 extractRecordedData((String) param) :
                 mapper.convertValue(param, SAMPLE_LIST_TYPE);
     }
 
+    /**
+     * Given a {@link Response} to {@link #FETCH_RECORD_NAME}, retrieves the cursor to be used for the next page.
+     *
+     * @param resp The response to be processed.
+     * @return The cursor for the next page.
+     * @throws IllegalArgumentException If the cursor is not present or not valid.
+     */
+    public static int extractCursor(Response resp) {
+        Object param = resp.getResponseData(CURSOR_PARAM_NAME);
+        if (param == null)
+            throw new IllegalArgumentException("cursor not present");
+        try {
+            return mapper.convertValue(param, Integer.class);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+    }
+
+    /**
+     * Given a {@link Response} to {@link #FETCH_RECORD_NAME}, verifies if the recording was stopped and every
+     * sample was already fetched.
+     *
+     * @param resp The response to be processed.
+     * @return True if there's nothing left to fetch.
+     */
+    public static boolean isRecordingComplete(Response resp) {
+        Object param = resp.getResponseData(RECORD_COMPLETE_PARAM_NAME);
+        return (param != null) && Boolean.parseBoolean(param.toString());
+    }
+
+    /**
+     * Given a {@link Response} to {@link #STOP_RECORD_NAME} for a recording stored with {@link #MAPPED_STORAGE},
+     * opens the recording file it refers to. This only works for clients running on the driver's host.
+     * <p>
+     * The file is the client's: the driver never deletes it, unless {@link #RECORD_DELETE_FILES_KEY} is enabled,
+     * in which case it's deleted once the recording expires from the driver's cache, after
+     * {@link #RECORD_TTL_KEY}, or the driver is destroyed.
+     *
+     * @param resp The response to be processed.
+     * @return The recorded data, read only, mapped from the file. It must be closed after use.
+     * @throws IllegalArgumentException If the response doesn't refer to a recording file.
+     * @throws IOException              If the file can't be read or is not a valid recording file.
+     */
+    public static MappedSampleStore openRecordedData(Response resp) throws IOException {
+        Object param = resp.getResponseData(RECORD_FILE_PARAM_NAME);
+        if (param == null)
+            throw new IllegalArgumentException("recording file not present");
+        return MappedSampleStore.open(Paths.get(param.toString()));
+    }
+
     /**
      * Given a list of samples serialized as a JSON string, tries to load it.
      *
@@ -250,7 +909,19 @@ public class IMUDriver implements UosEventDriver {
      * @throws IOException              If there's any JSON parsing/conversion error.
      */
     public static List<Sample> extractRecordedData(String json) throws IOException {
-        return mapper.readValue(json, SAMPLE_LIST_TYPE);
+        return new ArrayList<>(SampleJson.readSamples(json).asList());
+    }
+
+    /**
+     * Given a list of samples serialized as a JSON string, loads it straight into primitive arrays, one per
+     * column, for fast post-processing.
+     *
+     * @param json The serialized data to be parsed.
+     * @return The extracted data as primitive arrays.
+     * @throws IOException If there's any JSON parsing error.
+     */
+    public static SampleArrays extractRecordedArrays(String json) throws IOException {
+        return SampleJson.readArrays(json);
     }
 
     public String getInstanceId() {
@@ -294,17 +965,22 @@ public class IMUDriver implements UosEventDriver {
         if (defaultSensorId.isEmpty())
             defaultSensorId = DEFAULT_SENSOR_ID;
 
-        validIds.add(defaultSensorId);
+        List<SensorState> states = new ArrayList<>();
+        states.add(new SensorState(defaultSensorId, 0));
+        sensors.put(defaultSensorId, states.get(0));
         StringBuilder idlist = new StringBuilder(defaultSensorId);
         String[] ids = props.getString(VALID_IDS_KEY, "").split(",");
         for (String validId : ids) {
             validId = validId.trim();
-            if (!(validId.isEmpty() || validIds.contains(validId))) {
-                validIds.add(validId);
+            if (!(validId.isEmpty() || sensors.containsKey(validId))) {
+                SensorState state = new SensorState(validId, states.size());
+                states.add(state);
+                sensors.put(validId, state);
                 idlist.append(",");
                 idlist.append(validId);
             }
         }
+        this.states = states.toArray(new SensorState[0]);
 
         sensitivity = props.getDouble(SENSITIVITY_KEY, DEFAULT_SENSITIVITY);
         if (sensitivity < 0) {
@@ -318,36 +994,349 @@ public class IMUDriver implements UosEventDriver {
             minUpdateInterval = DEFAULT_MIN_UPDATE_INTERVAL;
         }
 
+        historyDuration = props.getInt(HISTORY_DURATION_KEY, DEFAULT_HISTORY_DURATION);
+        if (historyDuration < 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid history duration provided, using default.");
+            historyDuration = DEFAULT_HISTORY_DURATION;
+        }
+        // The history takes every sample the sensors produce, so, by default, holds the whole duration at their
+        // expected rate, in samples per second.
+        int historyRate = props.getInt(HISTORY_RATE_KEY, DEFAULT_HISTORY_RATE);
+        if (historyRate <= 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid history rate provided, using default.");
+            historyRate = DEFAULT_HISTORY_RATE;
+        }
+        int defaultHistoryCapacity = (int) Math.min(historyDuration * historyRate / 1000 + 1, Integer.MAX_VALUE);
+        int historyCapacity = props.getInt(HISTORY_CAPACITY_KEY, defaultHistoryCapacity);
+        if (historyCapacity <= 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid history capacity provided, using default.");
+            historyCapacity = defaultHistoryCapacity;
+        }
+        if (historyDuration > 0) {
+            for (SensorState state : this.states)
+                state.history = new SampleRing(historyCapacity);
+        }
+
+        reorderWindow = props.getInt(REORDER_WINDOW_KEY, DEFAULT_REORDER_WINDOW);
+        if (reorderWindow < 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid reorder window provided, using default.");
+            reorderWindow = DEFAULT_REORDER_WINDOW;
+        }
+        int reorderCapacity = props.getInt(REORDER_CAPACITY_KEY, DEFAULT_REORDER_CAPACITY);
+        if (reorderCapacity < 2) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid reorder capacity provided, using default.");
+            reorderCapacity = DEFAULT_REORDER_CAPACITY;
+        }
+        if (reorderWindow > 0) {
+            for (SensorState state : this.states)
+                state.reorder = new ReorderBuffer(reorderCapacity, reorderWindow);
+        }
+
+        int capacity = props.getInt(DISPATCH_CAPACITY_KEY, DEFAULT_DISPATCH_CAPACITY);
+        if (capacity <= 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid dispatch capacity provided, using default.");
+            capacity = DEFAULT_DISPATCH_CAPACITY;
+        }
+        OverflowPolicy overflow = parseOverflow(props, DISPATCH_OVERFLOW_KEY, DEFAULT_DISPATCH_OVERFLOW);
+        int listenerCapacity = props.getInt(LISTENER_CAPACITY_KEY, DEFAULT_LISTENER_CAPACITY);
+        if (listenerCapacity <= 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid listener capacity provided, using default.");
+            listenerCapacity = DEFAULT_LISTENER_CAPACITY;
+        }
+        OverflowPolicy listenerOverflow = parseOverflow(props, LISTENER_OVERFLOW_KEY, DEFAULT_LISTENER_OVERFLOW);
+        if (listenerOverflow == OverflowPolicy.BLOCK) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "listeners can't block, using default overflow policy.");
+            listenerOverflow = DEFAULT_LISTENER_OVERFLOW;
+        }
+        int listenerTimeout = props.getInt(LISTENER_TIMEOUT_KEY, DEFAULT_LISTENER_TIMEOUT);
+        if (listenerTimeout < 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid listener timeout provided, using default.");
+            listenerTimeout = DEFAULT_LISTENER_TIMEOUT;
+        }
+        int batchSize = props.getInt(BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE);
+        if (batchSize <= 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid batch size provided, using default.");
+            batchSize = DEFAULT_BATCH_SIZE;
+        }
+        int batchLatency = props.getInt(BATCH_LATENCY_KEY, DEFAULT_BATCH_LATENCY);
+        if (batchLatency < 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid batch latency provided, using default.");
+            batchLatency = DEFAULT_BATCH_LATENCY;
+        }
+        dispatcher = new Dispatcher(gateway, id, capacity, overflow, listenerTimeout,
+                new ListenerOptions(listenerCapacity, listenerOverflow, listenerTimeout, batchSize, batchLatency, false));
+        dispatcher.start();
+
+        recordDir = Paths.get(props.getString(RECORD_DIR_KEY,
+                Paths.get(System.getProperty("java.io.tmpdir"), "imudriver").toString()));
+        compressRecordings = props.getBool(RECORD_COMPRESS_KEY, DEFAULT_RECORD_COMPRESS);
+        int budget = props.getInt(RECORD_BUDGET_KEY, DEFAULT_RECORD_BUDGET);
+        if (budget <= 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid recording budget provided, using default.");
+            budget = DEFAULT_RECORD_BUDGET;
+        }
+        recordBudget = (long) budget << 20;
+        int ttl = props.getInt(RECORD_TTL_KEY, DEFAULT_RECORD_TTL);
+        if (ttl < 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid recording ttl provided, using default.");
+            ttl = DEFAULT_RECORD_TTL;
+        }
+        recordTtl = ttl;
+        maxRecordDuration = props.getInt(RECORD_MAX_DURATION_KEY, DEFAULT_RECORD_MAX_DURATION);
+        if (maxRecordDuration < 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid max recording duration provided, using default.");
+            maxRecordDuration = DEFAULT_RECORD_MAX_DURATION;
+        }
+        maxRecordSamples = props.getInt(RECORD_MAX_SAMPLES_KEY, DEFAULT_RECORD_MAX_SAMPLES);
+        if (maxRecordSamples < 0) {
+            logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid max recording samples provided, using default.");
+            maxRecordSamples = DEFAULT_RECORD_MAX_SAMPLES;
+        }
+        finishedRecordings = new RecordingCache(ttl,
+                props.getBool(RECORD_SPILL_KEY, DEFAULT_RECORD_SPILL) ? recordDir : null,
+                props.getBool(RECORD_DELETE_FILES_KEY, DEFAULT_RECORD_DELETE_FILES));
+        if (props.getBool(STORE_KEY, DEFAULT_STORE)) {
+            storeRetention = props.getInt(STORE_RETENTION_KEY, DEFAULT_STORE_RETENTION);
+            if (storeRetention < 0) {
+                logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid store retention provided, using default.");
+                storeRetention = DEFAULT_STORE_RETENTION;
+            }
+            // In megabytes per sensor.
+            storeMaxSize = props.getInt(STORE_MAX_SIZE_KEY, DEFAULT_STORE_MAX_SIZE);
+            if (storeMaxSize < 0) {
+                logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid store max size provided, using default.");
+                storeMaxSize = DEFAULT_STORE_MAX_SIZE;
+            }
+            storeMaxSize <<= 20;
+            Path storeDir = Paths.get(props.getString(STORE_DIR_KEY, recordDir.resolve("store").toString()));
+            try {
+                recordingStore = RecordingStore.open(storeDir);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, DRIVER_NAME + "[" + id + "]: " + "failed to open recording store at " +
+                        storeDir + ", recordings won't be persisted.", e);
+            }
+        }
+        String shm = props.getString(SHM_KEY, "");
+        if (!shm.isEmpty()) {
+            int shmCapacity = props.getInt(SHM_CAPACITY_KEY, DEFAULT_SHM_CAPACITY);
+            if ((shmCapacity <= 0) || (Integer.bitCount(shmCapacity) != 1)) {
+                logger.warning(DRIVER_NAME + "[" + id + "]: " + "invalid shared-memory ring capacity provided, using default.");
+                shmCapacity = DEFAULT_SHM_CAPACITY;
+            }
+            String[] handleIds = new String[this.states.length];
+            for (SensorState state : this.states)
+                handleIds[state.handle] = state.id;
+            try {
+                ring = ShmRingWriter.create(Paths.get(shm), shmCapacity, handleIds);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, DRIVER_NAME + "[" + id + "]: " + "failed to create shared-memory ring at " +
+                        shm + ", samples won't be published to it.", e);
+            }
+        }
+        stats = new DriverStats(Arrays.asList(this.states), dispatcher, finishedRecordings);
+        if (props.getBool(JMX_KEY, DEFAULT_JMX))
+            registerStats();
+        janitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "imudriver-janitor-" + id);
+            thread.setDaemon(true);
+            return thread;
+        });
+        janitor.scheduleWithFixedDelay(this::enforceLimits, JANITOR_PERIOD, JANITOR_PERIOD, TimeUnit.MILLISECONDS);
+        if ((minUpdateInterval > 0) || (reorderWindow > 0)) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "imudriver-flush-" + id);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
         logger.info(DRIVER_NAME + "[" + id + "]: " + "default sensor id - " + defaultSensorId + ".");
         logger.info(DRIVER_NAME + "[" + id + "]: " + "valid ids - " + idlist + ".");
         logger.info(DRIVER_NAME + "[" + id + "]: " + "sensitivity to changes >= " + sensitivity + ".");
     }
 
+    private OverflowPolicy parseOverflow(InitialProperties props, String key, OverflowPolicy defaultValue) {
+        String value = props.getString(key, defaultValue.name());
+        try {
+            return OverflowPolicy.parse(value);
+        } catch (IllegalArgumentException e) {
+            logger.warning(DRIVER_NAME + "[" + instanceId + "]: " + "invalid overflow policy '" + value +
+                    "' provided for " + key + ", using default.");
+            return defaultValue;
+        }
+    }
+
+    private void registerStats() {
+        try {
+            ObjectName name = new ObjectName("org.unbiquitous.unbihealth.imu:type=IMUDriver,name=" +
+                    ObjectName.quote(instanceId));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+            statsName = name;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, DRIVER_NAME + "[" + instanceId + "]: " + "failed to register stats MBean.", e);
+        }
+    }
+
     @Override
     public void destroy() {
-        listeners.clear();
+        if (statsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+            } catch (JMException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + "[" + instanceId + "]: " + "failed to unregister stats MBean.", e);
+            }
+            statsName = null;
+        }
+        if (janitor != null)
+            janitor.shutdownNow();
+        // Recordings stopped by the driver whose finishing was dropped with the janitor will never be finished.
+        for (StoppedRecording stopped : stoppedRecordings.values())
+            stopped.finished.countDown();
+        stoppedRecordings.clear();
+        if (flusher != null)
+            flusher.shutdownNow();
+        if (finishedRecordings != null)
+            finishedRecordings.clear();
+        if (dispatcher != null)
+            dispatcher.stop();
+        if (recordingStore != null) {
+            try {
+                recordingStore.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + "[" + instanceId + "]: " + "failed to close recording store.", e);
+            }
+            recordingStore = null;
+        }
+        if (ring != null) {
+            try {
+                ring.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + "[" + instanceId + "]: " + "failed to close shared-memory ring.", e);
+            }
+            ring = null;
+        }
         logger.info(DRIVER_NAME + ": destroy instance [" + instanceId + "]. Bye!");
     }
 
+    /**
+     * Registers the caller as a listener of either {@link #CHANGE_EVENT_NAME} or {@link #CHANGE_BATCH_EVENT_NAME}.
+     * Optional parameters {@link #OVERFLOW_PARAM_NAME}, {@link #TIMEOUT_PARAM_NAME}, {@link #BATCH_SIZE_PARAM_NAME}
+     * and {@link #BATCH_LATENCY_PARAM_NAME} override the driver-wide delivery options for this listener, and
+     * {@link #FORMAT_PARAM_NAME} may ask for events in the {@link #BINARY_FORMAT}. The listener may also subscribe
+     * to only some {@link #SENSOR_IDS_PARAM_NAME}, at most {@link #MAX_RATE_PARAM_NAME} samples per second of
+     * each sensor and only to changes of at least its own {@link #SENSITIVITY_PARAM_NAME}; samples left out are
+     * never serialized nor sent to it.
+     * <p>
+     * The overflow policy may be anything but {@link OverflowPolicy#BLOCK}, so a full listener queue discards
+     * samples instead of stalling the delivery to every other listener. The timeout, like
+     * {@link #LISTENER_TIMEOUT_KEY}, bounds how long a sample may wait in the listener's queue, not how long the
+     * gateway takes to notify it. A listener whose notifications hang loses its own samples to its overflow
+     * policy, while the other listeners keep receiving theirs.
+     */
     @Override
     public synchronized void registerListener(Call call, Response response, CallContext context) {
         logger.fine(DRIVER_NAME + ": registerListener.");
-        UpNetworkInterface uni = getNetworkInterface(context);
-        if (!listeners.containsKey(uni)) {
-            UpDevice device = context.getCallerDevice();
-            listeners.put(uni, device);
-            logger.info(DRIVER_NAME + ": registered listener from device '" + device.getName() + "'.");
+        UpDevice device = context.getCallerDevice();
+        try {
+            ListenerOptions options = extractListenerOptions(call);
+            if (dispatcher.addListener(extractEventKey(call), getNetworkInterface(context), device, options))
+                logger.info(DRIVER_NAME + ": registered listener from device '" + device.getName() + "'.");
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
         }
     }
 
+    private static String extractEventKey(Call call) {
+        Object param = call.getParameter(EVENT_KEY_PARAM_NAME);
+        return param == null ? CHANGE_EVENT_NAME : param.toString();
+    }
+
+    private ListenerOptions extractListenerOptions(Call call) {
+        ListenerOptions options = dispatcher.getDefaultOptions();
+        Object param = call.getParameter(OVERFLOW_PARAM_NAME);
+        if (param != null) {
+            OverflowPolicy policy;
+            try {
+                policy = OverflowPolicy.parse(param.toString());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid overflow policy");
+            }
+            if (policy == OverflowPolicy.BLOCK)
+                throw new IllegalArgumentException("block overflow policy not supported by listeners");
+            options = options.withPolicy(policy);
+        }
+        param = call.getParameter(FORMAT_PARAM_NAME);
+        if (param != null)
+            options = options.withBinary(extractBinaryFormat(call));
+        param = call.getParameter(TIMEOUT_PARAM_NAME);
+        if (param != null) {
+            long timeout;
+            try {
+                timeout = mapper.convertValue(param, Long.class);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("invalid timeout");
+            }
+            if (timeout < 0)
+                throw new IllegalArgumentException("negative timeout");
+            options = options.withTimeout(timeout);
+        }
+        Object size = call.getParameter(BATCH_SIZE_PARAM_NAME);
+        Object latency = call.getParameter(BATCH_LATENCY_PARAM_NAME);
+        if ((size != null) || (latency != null)) {
+            int batchSize;
+            long batchLatency;
+            try {
+                batchSize = size == null ? options.getBatchSize() : mapper.convertValue(size, Integer.class);
+                batchLatency = latency == null ? options.getBatchLatency() : mapper.convertValue(latency, Long.class);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("invalid batch size or latency");
+            }
+            if ((batchSize <= 0) || (batchLatency < 0))
+                throw new IllegalArgumentException("invalid batch size or latency");
+            options = options.withBatch(batchSize, batchLatency);
+        }
+        Object ids = call.getParameter(SENSOR_IDS_PARAM_NAME);
+        Object rate = call.getParameter(MAX_RATE_PARAM_NAME);
+        Object sensitivity = call.getParameter(SENSITIVITY_PARAM_NAME);
+        if ((ids != null) || (rate != null) || (sensitivity != null)) {
+            Set<String> sensorIds = null;
+            if (ids != null) {
+                String[] list;
+                try {
+                    list = ids instanceof String ? ((String) ids).split(",") : mapper.convertValue(ids, String[].class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid sensor ids");
+                }
+                sensorIds = new HashSet<>();
+                for (String id : list) {
+                    if (!sensors.containsKey(id.trim()))
+                        throw new IllegalArgumentException("invalid sensor ids");
+                    sensorIds.add(id.trim());
+                }
+            }
+            double maxRate, minChange;
+            try {
+                maxRate = rate == null ? 0 : mapper.convertValue(rate, Double.class);
+                minChange = sensitivity == null ? 0 : mapper.convertValue(sensitivity, Double.class);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("invalid max rate or sensitivity");
+            }
+            if (!(maxRate >= 0) || !(minChange >= 0))
+                throw new IllegalArgumentException("invalid max rate or sensitivity");
+            options = options.withSubscription(new Subscription(sensorIds, maxRate, minChange));
+        }
+        return options;
+    }
+
     @Override
     public synchronized void unregisterListener(Call call, Response response, CallContext context) {
         logger.fine(DRIVER_NAME + ": unregisterListener.");
-        UpDevice device = listeners.remove(getNetworkInterface(context));
+        UpDevice device = dispatcher.removeListener(extractEventKey(call), getNetworkInterface(context));
         if (device != null)
             logger.info(DRIVER_NAME + ": unregistered listener from device '" + device.getName() + "'.");
         else
-            logger.info(DRIVER_NAME + ": there was no listener registered for device '" + device.getName() + "'.");
+            logger.info(DRIVER_NAME + ": there was no listener registered for device '" +
+                    context.getCallerDevice().getName() + "'.");
     }
 
     private static UpNetworkInterface getNetworkInterface(CallContext context) {
@@ -360,22 +1349,202 @@ public class IMUDriver implements UosEventDriver {
         response.addParameter(SENSITIVITY_PARAM_NAME, sensitivity);
     }
 
+    /**
+     * Takes the last data of a sensor as its reference orientation. If no sensor id is given, every
+     * sensor is tared.
+     */
     public void tare(Call call, Response response, CallContext context) {
-        refData = lastData;
+        Collection<SensorState> targets;
+        try {
+            targets = call.getParameter(SENSOR_ID_PARAM_NAME) == null ?
+                    sensors.values() :
+                    Collections.singleton(extractSensorState(call));
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
+            return;
+        }
+
+        for (SensorState state : targets) {
+            synchronized (state) {
+                state.refX = state.lastX;
+                state.refY = state.lastY;
+                state.refZ = state.lastZ;
+            }
+        }
+    }
+
+    /**
+     * Reports the runtime statistics of every sensor, listener and the dispatcher. These are also available
+     * through JMX, as an {@link IMUDriverStatsMXBean}, unless disabled by {@link #JMX_KEY}.
+     */
+    public void getStats(Call call, Response response, CallContext context) {
+        response.addParameter(SENSOR_STATS_PARAM_NAME, stats.getSensors());
+        response.addParameter(LISTENER_STATS_PARAM_NAME, stats.getListeners());
+        response.addParameter(DISPATCH_DROPPED_PARAM_NAME, stats.getDispatchDropped());
+        response.addParameter(DISPATCH_QUEUED_PARAM_NAME, stats.getDispatchQueued());
+        response.addParameter(RECORDING_MEMORY_PARAM_NAME, stats.getRecordingMemory());
+        response.addParameter(CACHED_RECORDINGS_PARAM_NAME, stats.getCachedRecordings());
+    }
+
+    /**
+     * Retrieves the samples a sensor received over the given {@link #DURATION_PARAM_NAME}, in milliseconds, up
+     * to its latest sample; by default, over the whole {@link #HISTORY_DURATION_KEY}. The history holds every
+     * sample the sensor received, corrected and normalized, but not filtered, whether or not it was notified
+     * to listeners, up to {@link #HISTORY_CAPACITY_KEY} samples.
+     */
+    public void getHistory(Call call, Response response, CallContext context) {
+        SensorState state;
+        long duration = historyDuration;
+        boolean binary;
+        try {
+            binary = extractBinaryFormat(call);
+            state = extractSensorState(call);
+
+            Object param = call.getParameter(DURATION_PARAM_NAME);
+            if (param != null) {
+                try {
+                    duration = mapper.convertValue(param, Long.class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid duration");
+                }
+                if (duration < 0)
+                    throw new IllegalArgumentException("negative duration");
+            }
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
+            return;
+        }
+
+        ChunkedSampleStore window = new ChunkedSampleStore();
+        synchronized (state) {
+            SampleRing history = state.history;
+            if (history == null) {
+                response.setError("history is disabled");
+                return;
+            }
+            int size = history.size();
+            if (size > 0)
+                history.copyTo(history.indexOf(history.getTimestamp(size - 1) - duration), size, window);
+        }
+
+        if (binary) {
+            response.addParameter(RECORD_DATA_PARAM_NAME, SampleCodec.encodeRecording(window));
+            response.addParameter(FORMAT_PARAM_NAME, BINARY_FORMAT);
+        } else
+            response.addParameter(RECORD_DATA_PARAM_NAME, window.asList());
+    }
+
+    /**
+     * Lists the recordings kept in the persistent store, either of the given sensor or of all of them,
+     * including the ones recorded before the driver restarted.
+     */
+    public void listRecordings(Call call, Response response, CallContext context) {
+        String sensorId = null;
+        try {
+            if (call.getParameter(SENSOR_ID_PARAM_NAME) != null)
+                sensorId = extractSensorState(call).id;
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
+            return;
+        }
+        if (recordingStore == null) {
+            response.setError("recording store is disabled");
+            return;
+        }
+        response.addParameter(RECORDINGS_PARAM_NAME, recordingStore.list(sensorId));
+    }
+
+    /**
+     * Retrieves the stored samples of a sensor with timestamps between {@link #FROM_PARAM_NAME} and
+     * {@link #TO_PARAM_NAME}, both inclusive, regardless of the recording they belong to. At most
+     * {@link #MAX_SAMPLES_PARAM_NAME} samples are returned, {@link #RECORD_COMPLETE_PARAM_NAME} tells whether
+     * there may be more.
+     */
+    public void queryRecordings(Call call, Response response, CallContext context) {
+        SensorState state;
+        long from, to = Long.MAX_VALUE;
+        int maxSamples = DEFAULT_MAX_SAMPLES;
+        boolean binary;
+        try {
+            binary = extractBinaryFormat(call);
+            state = extractSensorState(call);
+
+            Object param = call.getParameter(FROM_PARAM_NAME);
+            if (param == null)
+                throw new IllegalArgumentException("no start time provided");
+            try {
+                from = mapper.convertValue(param, Long.class);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("invalid start time");
+            }
+
+            param = call.getParameter(TO_PARAM_NAME);
+            if (param != null) {
+                try {
+                    to = mapper.convertValue(param, Long.class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid end time");
+                }
+                if (to < from)
+                    throw new IllegalArgumentException("end time before start time");
+            }
+
+            param = call.getParameter(MAX_SAMPLES_PARAM_NAME);
+            if (param != null) {
+                try {
+                    maxSamples = mapper.convertValue(param, Integer.class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid max samples");
+                }
+                if (maxSamples <= 0)
+                    throw new IllegalArgumentException("non-positive max samples");
+            }
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
+            return;
+        }
+        if (recordingStore == null) {
+            response.setError("recording store is disabled");
+            return;
+        }
+
+        ChunkedSampleStore samples;
+        try {
+            samples = recordingStore.query(state.id, from, to, maxSamples);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, DRIVER_NAME + ": failed to query stored recordings.", e);
+            response.setError("failed to query recordings");
+            return;
+        }
+        if (binary) {
+            response.addParameter(RECORD_DATA_PARAM_NAME, SampleCodec.encodeRecording(samples));
+            response.addParameter(FORMAT_PARAM_NAME, BINARY_FORMAT);
+        } else
+            response.addParameter(RECORD_DATA_PARAM_NAME, samples.asList());
+        response.addParameter(RECORD_COMPLETE_PARAM_NAME, samples.size() < maxSamples);
     }
 
     public void listIds(Call call, Response response, CallContext context) {
-        response.addParameter(IDS_PARAM_NAME, validIds.toArray(new String[0]));
+        response.addParameter(IDS_PARAM_NAME, sensors.keySet().toArray(new String[0]));
     }
 
-    private String extractSensorId(Call call) {
+    private SensorState extractSensorState(Call call) {
         Object param = call.getParameter(SENSOR_ID_PARAM_NAME);
         if (param == null)
             throw new IllegalArgumentException("no sensor id provided");
-        String sensorId = param.toString();
-        if (!validIds.contains(sensorId))
+        SensorState state = sensors.get(param.toString());
+        if (state == null)
             throw new IllegalArgumentException("invalid or unknown sensor id");
-        return sensorId;
+        return state;
+    }
+
+    private static boolean extractBinaryFormat(Call call) {
+        Object param = call.getParameter(FORMAT_PARAM_NAME);
+        if ((param == null) || JSON_FORMAT.equals(param.toString()))
+            return false;
+        if (BINARY_FORMAT.equals(param.toString()))
+            return true;
+        throw new IllegalArgumentException("invalid format");
     }
 
     private String extractRecordId(Call call) {
@@ -386,14 +1555,15 @@ public class IMUDriver implements UosEventDriver {
     }
 
     public void startRecording(Call call, Response response, CallContext context) {
-        String sensorId;
+        SensorState state;
         int stepTime = DEFAULT_STEP_TIME;
+        int filterSize = DEFAULT_FILTER_SIZE;
+        boolean mapped = false;
         boolean interpolate = false;
+        long preTrigger = 0;
         try {
             // Validates sensor id.
-            sensorId = extractSensorId(call);
-            if (recorders.containsKey(sensorId))
-                throw new IllegalArgumentException("already recording this sensor id");
+            state = extractSensorState(call);
 
             // Validates step time.
             Object param = call.getParameter(STEP_TIME_PARAM_NAME);
@@ -406,6 +1576,50 @@ public class IMUDriver implements UosEventDriver {
                 if (stepTime <= 0)
                     throw new IllegalArgumentException("non-positive step time");
             }
+
+            // Validates interpolation.
+            param = call.getParameter(INTERPOLATE_PARAM_NAME);
+            if (param != null) {
+                if ("true".equalsIgnoreCase(param.toString()))
+                    interpolate = true;
+                else if (!"false".equalsIgnoreCase(param.toString()))
+                    throw new IllegalArgumentException("invalid interpolate flag");
+            }
+
+            // Validates filter size.
+            param = call.getParameter(FILTER_SIZE_PARAM_NAME);
+            if (param != null) {
+                try {
+                    filterSize = mapper.convertValue(param, Integer.class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid filter size");
+                }
+                if (filterSize < 3)
+                    throw new IllegalArgumentException("filter size must be at least 3");
+            }
+
+            // Validates storage.
+            param = call.getParameter(STORAGE_PARAM_NAME);
+            if (param != null) {
+                if (MAPPED_STORAGE.equals(param.toString()))
+                    mapped = true;
+                else if (!MEMORY_STORAGE.equals(param.toString()))
+                    throw new IllegalArgumentException("invalid storage");
+            }
+
+            // Validates pre-trigger.
+            param = call.getParameter(PRE_TRIGGER_PARAM_NAME);
+            if (param != null) {
+                try {
+                    preTrigger = mapper.convertValue(param, Long.class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid pre-trigger");
+                }
+                if (preTrigger < 0)
+                    throw new IllegalArgumentException("negative pre-trigger");
+                if ((preTrigger > 0) && (historyDuration == 0))
+                    throw new IllegalArgumentException("history is disabled");
+            }
         } catch (IllegalArgumentException e) {
             response.setError(e.getMessage());
             return;
@@ -413,33 +1627,451 @@ public class IMUDriver implements UosEventDriver {
 
         // Prepares data structures and generates an id.
         String id = UUID.randomUUID().toString();
-        synchronized (recorders) {
-            recorders.put(sensorId, new Recorder(id, stepTime, interpolate));
+        SampleStore store;
+        try {
+            store = mapped ?
+                    createRecordFile(state.id, id, interpolate ? RAW_RECORD_FILE_EXTENSION : RECORD_FILE_EXTENSION) :
+                    null;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, DRIVER_NAME + ": failed to create recording file.", e);
+            response.setError("failed to create recording file");
+            return;
+        }
+        boolean started = false;
+        synchronized (state) {
+            if (state.recorder == null) {
+                state.recorder = store == null ?
+                        new Recorder(id, stepTime, interpolate, filterSize) :
+                        new Recorder(id, stepTime, interpolate, filterSize, store);
+                if (preTrigger > 0)
+                    preTrigger(state, preTrigger);
+                started = true;
+            }
+        }
+        if (!started) {
+            close(store);
+            response.setError("already recording this sensor id");
+            return;
         }
         response.addParameter(RECORD_ID_PARAM_NAME, id);
     }
 
+    /**
+     * Seeds a new recording with the samples from the sensor's history that are at most the given time older
+     * than the latest one. Must be called holding the state's lock.
+     */
+    private void preTrigger(SensorState state, long preTrigger) {
+        SampleRing history = state.history;
+        int size = history.size();
+        if (size == 0)
+            return;
+        for (int i = history.indexOf(history.getTimestamp(size - 1) - preTrigger); i < size; ++i) {
+            if (!record(state, history.getTimestamp(i),
+                    history.getW(i), history.getX(i), history.getY(i), history.getZ(i)))
+                return;
+        }
+    }
+
+    /**
+     * Feeds a sample to the sensor's active recording. If the recording can't take it, e.g. its file is full
+     * or can't grow, stops it, as when it goes over its limits, instead of failing the sensor's ingest. Must be
+     * called holding the state's lock.
+     *
+     * @return False if the recording was stopped.
+     */
+    private boolean record(SensorState state, long timestamp, double w, double x, double y, double z) {
+        Recorder recorder = state.recorder;
+        try {
+            recorder.add(timestamp, w, x, y, z);
+            return true;
+        } catch (IllegalStateException | UncheckedIOException e) {
+            logger.log(Level.WARNING, DRIVER_NAME + "[" + instanceId + "]: " + "recording " + recorder.getId() +
+                    " of sensor " + state.id + " failed to store a sample, stopping.", e);
+            StoppedRecording stopped = takeRecording(state);
+            // Finishes it on the janitor, out of the sensor's lock.
+            ScheduledExecutorService janitor = this.janitor;
+            try {
+                if (janitor != null) {
+                    janitor.execute(() -> finishStopped(state, recorder, stopped));
+                    return false;
+                }
+            } catch (RejectedExecutionException ex) {
+                // Destroyed.
+            }
+            finishStopped(state, recorder, stopped);
+            return false;
+        }
+    }
+
+    private MappedSampleStore createRecordFile(String sensorId, String recordId, String extension) throws IOException {
+        Files.createDirectories(recordDir);
+        return MappedSampleStore.create(recordDir.resolve(sensorId + "-" + recordId + extension));
+    }
+
+    /**
+     * Resamples an interpolating recording into the same kind of storage it was recorded to and discards
+     * the raw data. If a new recording file can't be created, the curve is resampled into memory instead,
+     * at full precision.
+     */
+    private SampleStore finishInterpolating(String sensorId, Recorder recorder) {
+        SampleStore raw = recorder.getStore();
+        SampleStore target = null;
+        if (raw instanceof MappedSampleStore) {
+            try {
+                target = createRecordFile(sensorId, recorder.getId(), RECORD_FILE_EXTENSION);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + ": failed to create recording file, resampling into memory.", e);
+            }
+        }
+        if (target == null)
+            target = new ChunkedSampleStore();
+        SampleStore store = recorder.finish(target);
+        close(raw);
+        if (raw instanceof MappedSampleStore) {
+            try {
+                Files.deleteIfExists(((MappedSampleStore) raw).getPath());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + ": failed to delete raw recording file.", e);
+            }
+        }
+        return store;
+    }
+
+    private static void close(Object store) {
+        if (store instanceof Closeable) {
+            try {
+                ((Closeable) store).close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + ": failed to close recording storage.", e);
+            }
+        }
+    }
+
+    /**
+     * Stops a recording and returns it. A recording the driver already stopped on its own, for going over its
+     * limits or failing to store samples, is returned as well, as long as it's still cached or stored. A mapped
+     * recording is returned as the path of its file, {@link #RECORD_FILE_PARAM_NAME}, which is left for the
+     * client to delete, see {@link #openRecordedData(Response)}.
+     */
     public void stopRecording(Call call, Response response, CallContext context) {
-        String sensorId, recordId;
+        SensorState state;
         Recorder recorder;
+        StoppedRecording stopped = null;
+        String recordId;
+        boolean binary;
+        try {
+            binary = extractBinaryFormat(call);
+            recordId = extractRecordId(call);
+            state = extractSensorState(call);
+            synchronized (state) {
+                recorder = state.recorder;
+                if ((recorder == null) || !recorder.getId().equals(recordId)) {
+                    stopped = stoppedRecordings.get(recordId);
+                    if ((stopped == null) || !stopped.sensorId.equals(state.id))
+                        throw new IllegalArgumentException(recorder == null ?
+                                "not currently recording this sensor id" : "invalid or unknown record id");
+                } else
+                    state.recorder = null;
+            }
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
+            return;
+        }
+
+        SampleStore store;
+        if (stopped == null)
+            store = finishRecording(state, recorder);
+        else {
+            try {
+                store = findStopped(state, recordId, stopped);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, DRIVER_NAME + ": failed to load stopped recording.", e);
+                response.setError("failed to load recording");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response.setError("interrupted");
+                return;
+            }
+            stoppedRecordings.remove(recordId);
+            if (store == null) {
+                response.setError("recording was stopped by the driver and is no longer available");
+                return;
+            }
+        }
+        if (store instanceof MappedSampleStore) {
+            // The data stays on disk, only a handle to it is sent.
+            response.addParameter(RECORD_FILE_PARAM_NAME, ((MappedSampleStore) store).getPath().toAbsolutePath().toString());
+            response.addParameter(RECORD_SIZE_PARAM_NAME, store.size());
+        } else if (binary) {
+            response.addParameter(RECORD_DATA_PARAM_NAME, SampleCodec.encodeRecording(store));
+            response.addParameter(FORMAT_PARAM_NAME, BINARY_FORMAT);
+        } else
+            response.addParameter(RECORD_DATA_PARAM_NAME, store.asList());
+    }
+
+    /**
+     * Waits for a recording the driver stopped on its own to be finished, up to
+     * {@value #STOPPED_RECORDING_WAIT} milliseconds, and retrieves it, from the cache or the recording store.
+     *
+     * @return The recording or null, if it's no longer available or wasn't finished in time.
+     */
+    private SampleStore findStopped(SensorState state, String recordId, StoppedRecording stopped)
+            throws IOException, InterruptedException {
+        if (!stopped.finished.await(STOPPED_RECORDING_WAIT, TimeUnit.MILLISECONDS))
+            return null;
+        SampleStore store = finishedRecordings.get(state.id, recordId);
+        if ((store == null) && (recordingStore != null)) {
+            RecordingInfo info = recordingStore.find(state.id, recordId);
+            if (info != null)
+                store = recordingStore.read(info, 0, info.getSize());
+        }
+        return store;
+    }
+
+    /**
+     * Takes the active recording away from a sensor, so the driver can stop it on its own, and remembers it for
+     * its client's {@link #stopRecording}. Must be called holding the state's lock.
+     *
+     * @return What to hand over to {@link #finishStopped} once the recording is finished.
+     */
+    private StoppedRecording takeRecording(SensorState state) {
+        StoppedRecording stopped = new StoppedRecording(state.id);
+        stoppedRecordings.put(state.recorder.getId(), stopped);
+        state.recorder = null;
+        return stopped;
+    }
+
+    /**
+     * Finishes a recording taken by {@link #takeRecording}.
+     */
+    private void finishStopped(SensorState state, Recorder recorder, StoppedRecording stopped) {
+        try {
+            finishRecording(state, recorder);
+        } finally {
+            stopped.finished.countDown();
+        }
+    }
+
+    /**
+     * Moves a stopped recording into its final store and keeps it for fetching. The recording is persisted and
+     * returned at full precision; only the copy kept in memory for fetching is compressed, if enabled by
+     * {@link #RECORD_COMPRESS_KEY}.
+     *
+     * @return The final store.
+     */
+    private SampleStore finishRecording(SensorState state, Recorder recorder) {
+        SampleStore store;
+        if (recorder.isInterpolating())
+            store = finishInterpolating(state.id, recorder);
+        else
+            store = recorder.finish(recorder.getStore());
+        close(store);
+        finishedRecordings.put(state.id, recorder.getId(),
+                compressRecordings && !(store instanceof MappedSampleStore) ?
+                        CompressedSampleStore.copyOf(store) : store);
+        if (recordingStore != null) {
+            try {
+                recordingStore.append(state.id, recorder.getId(), store);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + "[" + instanceId + "]: " + "failed to persist recording " +
+                        recorder.getId() + " of sensor " + state.id + ".", e);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Runs periodically to keep recordings within their limits: expires old finished recordings, stops active
+     * ones that went over their maximum duration or size and, while over the memory budget, evicts the least
+     * recently used finished recordings and then stops the largest active ones. Finally, drops the stored
+     * recordings that are past the store's retention or size.
+     */
+    private void enforceLimits() {
         try {
+            finishedRecordings.expire(System.currentTimeMillis());
+
+            long now = System.currentTimeMillis();
+            if (recordTtl > 0)
+                stoppedRecordings.values().removeIf(stopped -> now - stopped.stopTime >= recordTtl);
+            for (SensorState state : states) {
+                Recorder recorder;
+                StoppedRecording stopped;
+                synchronized (state) {
+                    recorder = state.recorder;
+                    boolean over = (recorder != null) &&
+                            (((maxRecordDuration > 0) && (now - recorder.getStartTime() >= maxRecordDuration)) ||
+                                    ((maxRecordSamples > 0) && (recorder.getStore().size() >= maxRecordSamples)));
+                    if (!over)
+                        continue;
+                    stopped = takeRecording(state);
+                }
+                logger.warning(DRIVER_NAME + "[" + instanceId + "]: " + "recording " + recorder.getId() +
+                        " of sensor " + state.id + " reached its limit, stopping.");
+                finishStopped(state, recorder, stopped);
+            }
+
+            while (stats.getActiveRecordingMemory() + finishedRecordings.getMemoryUsage() > recordBudget) {
+                if (finishedRecordings.evict())
+                    continue;
+                if (!stopLargestRecording())
+                    break;
+            }
+
+            RecordingStore recordingStore = this.recordingStore;
+            if ((recordingStore != null) && ((storeRetention > 0) || (storeMaxSize > 0)))
+                recordingStore.retain(storeRetention > 0 ? now - storeRetention : Long.MIN_VALUE, storeMaxSize);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, DRIVER_NAME + "[" + instanceId + "]: " + "failed to enforce recording limits.", e);
+        }
+    }
+
+    private boolean stopLargestRecording() {
+        SensorState largest = null;
+        Recorder recorder = null;
+        long max = 0;
+        for (SensorState state : states) {
+            synchronized (state) {
+                if ((state.recorder != null) && (state.recorder.getStore().getMemoryUsage() > max)) {
+                    largest = state;
+                    recorder = state.recorder;
+                    max = recorder.getStore().getMemoryUsage();
+                }
+            }
+        }
+        if (largest == null)
+            return false;
+        StoppedRecording stopped;
+        synchronized (largest) {
+            if (largest.recorder != recorder)
+                return true;
+            stopped = takeRecording(largest);
+        }
+        logger.warning(DRIVER_NAME + "[" + instanceId + "]: " + "recording " + recorder.getId() +
+                " of sensor " + largest.id + " is over the memory budget, stopping.");
+        finishStopped(largest, recorder, stopped);
+        return true;
+    }
+
+    /**
+     * A recording the driver stopped on its own.
+     */
+    private static final class StoppedRecording {
+        final String sensorId;
+        final long stopTime = System.currentTimeMillis();
+        // Released once the recording is finished and cached.
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        StoppedRecording(String sensorId) {
+            this.sensorId = sensorId;
+        }
+    }
+
+    /**
+     * Retrieves a page of a recording, either still active or already stopped, starting from the given
+     * {@link #CURSOR_PARAM_NAME} (0, if not provided). The response holds the samples, the cursor for the next
+     * page and whether the recording is {@link #RECORD_COMPLETE_PARAM_NAME}, i.e., stopped and fully fetched.
+     * <p>
+     * While recording, the last sample may still be replaced, so it's only returned after it's final. Interpolating
+     * recordings are resampled page by page.
+     */
+    public void fetchRecording(Call call, Response response, CallContext context) {
+        SensorState state;
+        String recordId;
+        int cursor = 0, maxSamples = DEFAULT_MAX_SAMPLES;
+        boolean binary;
+        try {
+            binary = extractBinaryFormat(call);
             recordId = extractRecordId(call);
-            sensorId = extractSensorId(call);
-            recorder = recorders.get(sensorId);
-            if (recorder == null)
-                throw new IllegalArgumentException("not currently recording this sensor id");
-            if (!recorder.getId().equals(recordId))
-                throw new IllegalArgumentException("invalid or unknown record id");
+            state = extractSensorState(call);
+
+            Object param = call.getParameter(CURSOR_PARAM_NAME);
+            if (param != null) {
+                try {
+                    cursor = mapper.convertValue(param, Integer.class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid cursor");
+                }
+                if (cursor < 0)
+                    throw new IllegalArgumentException("negative cursor");
+            }
+
+            param = call.getParameter(MAX_SAMPLES_PARAM_NAME);
+            if (param != null) {
+                try {
+                    maxSamples = mapper.convertValue(param, Integer.class);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("invalid max samples");
+                }
+                if (maxSamples <= 0)
+                    throw new IllegalArgumentException("non-positive max samples");
+            }
         } catch (IllegalArgumentException e) {
             response.setError(e.getMessage());
             return;
         }
 
-        List<Sample> data = recorder.getData();
-        synchronized (recorders) {
-            lastRecordedData.put(sensorId, data);
-            recorders.remove(sensorId);
+        SampleStore store = null;
+        int end = 0;
+        boolean complete = false;
+        ChunkedSampleStore page = null;
+        synchronized (state) {
+            Recorder recorder = state.recorder;
+            if ((recorder != null) && recorder.getId().equals(recordId)) {
+                // Still recording, copies (or resamples) the final samples while holding the lock.
+                store = recorder.getStore();
+                end = recorder.getFinalSize();
+                if (cursor <= end)
+                    page = recorder.copy(cursor, Math.min(end, cursor + maxSamples));
+            }
+        }
+        if (store == null) {
+            try {
+                store = finishedRecordings.get(state.id, recordId);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, DRIVER_NAME + ": failed to load spilled recording.", e);
+                response.setError("failed to load recording");
+                return;
+            }
+            if (store != null) {
+                // Already stopped, the data won't change anymore.
+                end = store.size();
+                if (cursor <= end) {
+                    page = ChunkedSampleStore.copyOf(store, cursor, Math.min(end, cursor + maxSamples));
+                    complete = cursor + page.size() == end;
+                }
+            }
+        }
+        RecordingInfo stored = null;
+        if ((store == null) && (recordingStore != null)) {
+            // Evicted, expired or recorded before a restart, reads it back from disk.
+            stored = recordingStore.find(state.id, recordId);
+            if ((stored != null) && (cursor <= stored.getSize())) {
+                try {
+                    page = recordingStore.read(stored, cursor, Math.min(stored.getSize(), cursor + maxSamples));
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, DRIVER_NAME + ": failed to read stored recording.", e);
+                    response.setError("failed to load recording");
+                    return;
+                }
+                complete = cursor + page.size() == stored.getSize();
+            }
+        }
+        if ((store == null) && (stored == null)) {
+            response.setError("invalid or unknown record id");
+            return;
         }
-        response.addParameter(RECORD_DATA_PARAM_NAME, data);
+        if (page == null) {
+            response.setError("cursor past the end of the recording");
+            return;
+        }
+
+        if (binary) {
+            response.addParameter(RECORD_DATA_PARAM_NAME, SampleCodec.encodeRecording(page));
+            response.addParameter(FORMAT_PARAM_NAME, BINARY_FORMAT);
+        } else
+            response.addParameter(RECORD_DATA_PARAM_NAME, page.asList());
+        response.addParameter(CURSOR_PARAM_NAME, cursor + page.size());
+        response.addParameter(RECORD_COMPLETE_PARAM_NAME, complete);
     }
 }
@@ -0,0 +1,49 @@
+package org.unbiquitous.unbihealth.imu;
+
+import org.unbiquitous.unbihealth.imu.record.Recorder;
+import org.unbiquitous.unbihealth.imu.record.ReorderBuffer;
+import org.unbiquitous.unbihealth.imu.record.SampleRing;
+import org.unbiquitous.unbihealth.imu.stats.SensorStats;
+
+/**
+ * Holds the ingest state of a single sensor. Every sensor has its own instance, so throttling,
+ * sensitivity and tare are applied independently per sensor id. Instances are indexed by their
+ * handle, so the ingest path can find them without hashing the sensor id.
+ * <p>
+ * All mutable fields are guarded by the instance's own monitor. Since each sensor is usually fed
+ * by a single thread, this lock is uncontended and different sensors never block each other.
+ * The statistics are thread safe on their own.
+ */
+final class SensorState {
+    final String id;
+    final int handle;
+    final SensorStats stats = new SensorStats();
+    long lastUpdate = 0;
+    // The last notified raw data, as w, x, y and z.
+    double lastW, lastX, lastY, lastZ;
+    // Whether the last ingested sample was held back by the minimum update interval, to be flushed once it's
+    // over, and its timestamp and raw data. Its corrected data is the normalized data below.
+    boolean pending;
+    long pendingTimestamp;
+    double pendingW, pendingX, pendingY, pendingZ;
+    // Whether a flush of the held back sample is scheduled.
+    boolean flushScheduled;
+    // The reference orientation's vector part, taken from the last data by tare.
+    double refX, refY, refZ;
+    // The corrected and normalized data of the last ingested sample.
+    double normW, normX, normY, normZ;
+    Recorder recorder;
+    // The recent samples, corrected and normalized, or null if the history is disabled.
+    SampleRing history;
+    // The raw samples waiting to be put back in order, or null if reordering is disabled.
+    ReorderBuffer reorder;
+    // When the last sample arrived, as given by System.nanoTime(), and whether a drain of the reorder buffer
+    // is scheduled.
+    long lastArrival;
+    boolean drainScheduled;
+
+    SensorState(String id, int handle) {
+        this.id = id;
+        this.handle = handle;
+    }
+}
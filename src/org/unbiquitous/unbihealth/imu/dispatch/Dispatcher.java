@@ -0,0 +1,221 @@
+package org.unbiquitous.unbihealth.imu.dispatch;
+
+import org.unbiquitous.unbihealth.imu.SensorData;
+import org.unbiquitous.unbihealth.imu.stats.ListenerSnapshot;
+import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.unbiquitous.unbihealth.imu.IMUDriver.CHANGE_BATCH_EVENT_NAME;
+import static org.unbiquitous.unbihealth.imu.IMUDriver.CHANGE_EVENT_NAME;
+
+/**
+ * Decouples the sensor threads from the delivery of change events.
+ * <p>
+ * Ingest threads only put samples into a bounded ring buffer. A fan-out thread takes them from there
+ * and offers each one to every listener's own queue, which is drained by that listener's worker thread.
+ * Therefore, a slow or dead listener only ever fills its own queue, and the latency of
+ * {@link #dispatch(SensorData)} doesn't depend on the network. The fan-out thread also queues the samples
+ * listeners held back for their maximum rate, once due.
+ */
+public final class Dispatcher implements Runnable {
+    private final Gateway gateway;
+    private final String instanceId;
+    private final SampleQueue ring;
+    private final ListenerOptions defaultOptions;
+    private final Listener defaultListener;
+    private final ConcurrentHashMap<Key, Listener> listeners = new ConcurrentHashMap<>();
+    private final Thread fanOut;
+
+    /**
+     * @param gateway        The gateway used to send notifications.
+     * @param instanceId     The driver's instance id.
+     * @param capacity       The capacity of the ring buffer between ingest and fan-out.
+     * @param policy         What to do when the ring buffer is full.
+     * @param timeout        How long, in milliseconds, a sample may wait in the ring buffer.
+     * @param defaultOptions The options of the default notification target, also used for listeners
+     *                       that don't provide their own.
+     */
+    public Dispatcher(Gateway gateway, String instanceId, int capacity, OverflowPolicy policy, long timeout,
+                      ListenerOptions defaultOptions) {
+        this.gateway = gateway;
+        this.instanceId = instanceId;
+        this.ring = new SampleQueue(capacity, policy, timeout);
+        this.defaultOptions = defaultOptions;
+        this.defaultListener = new Listener(gateway, instanceId, null, defaultOptions, false);
+        this.fanOut = new Thread(this, "imudriver-dispatch-" + instanceId);
+        this.fanOut.setDaemon(true);
+    }
+
+    public void start() {
+        defaultListener.start();
+        fanOut.start();
+    }
+
+    /**
+     * Stops every thread and discards whatever is still queued.
+     */
+    public void stop() {
+        ring.close();
+        fanOut.interrupt();
+        defaultListener.stop();
+        for (Listener listener : listeners.values())
+            listener.stop();
+        listeners.clear();
+    }
+
+    /**
+     * Hands a sample over to be sent to every listener.
+     *
+     * @param data The sample.
+     * @return False if any sample had to be discarded because the ring buffer was full.
+     */
+    public boolean dispatch(SensorData data) {
+        return ring.offer(data);
+    }
+
+    /**
+     * Hands several samples over to be sent to every listener, in order, taking the ring buffer's lock only
+     * once.
+     *
+     * @param batch The samples.
+     * @return False if any sample had to be discarded because the ring buffer was full.
+     */
+    public boolean dispatchAll(List<SensorData> batch) {
+        return batch.isEmpty() || ring.offerAll(batch);
+    }
+
+    /**
+     * @return The options used for listeners that don't provide their own.
+     */
+    public ListenerOptions getDefaultOptions() {
+        return defaultOptions;
+    }
+
+    /**
+     * Registers a new listener, unless there's already one for the given event and interface.
+     *
+     * @param eventKey The event the listener registers for, either
+     *                 {@link org.unbiquitous.unbihealth.imu.IMUDriver#CHANGE_EVENT_NAME} or
+     *                 {@link org.unbiquitous.unbihealth.imu.IMUDriver#CHANGE_BATCH_EVENT_NAME}.
+     * @param uni      The listener's network interface.
+     * @param device   The listener's device.
+     * @param options  The listener's delivery options.
+     * @return True if the listener was registered.
+     * @throws IllegalArgumentException If the event key is unknown.
+     */
+    public boolean addListener(String eventKey, UpNetworkInterface uni, UpDevice device, ListenerOptions options) {
+        Listener listener = new Listener(gateway, instanceId, device, options, isBatched(eventKey));
+        if (listeners.putIfAbsent(new Key(eventKey, uni), listener) != null)
+            return false;
+        listener.start();
+        return true;
+    }
+
+    /**
+     * Removes and stops the listener for the given event and interface.
+     *
+     * @param eventKey The event the listener registered for.
+     * @param uni      The listener's network interface.
+     * @return The listener's device or null if there was no such listener.
+     */
+    public UpDevice removeListener(String eventKey, UpNetworkInterface uni) {
+        Listener listener = listeners.remove(new Key(eventKey, uni));
+        if (listener == null)
+            return null;
+        listener.stop();
+        return listener.getDevice();
+    }
+
+    /**
+     * @return How many samples were discarded by the ring buffer so far.
+     */
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    /**
+     * @return How many samples are waiting in the ring buffer.
+     */
+    public int getQueued() {
+        return ring.size();
+    }
+
+    /**
+     * @return The statistics of every listener, starting with the default notification target.
+     */
+    public List<ListenerSnapshot> getListenerStats() {
+        List<ListenerSnapshot> stats = new ArrayList<>(listeners.size() + 1);
+        stats.add(defaultListener.snapshot());
+        for (Listener listener : listeners.values())
+            stats.add(listener.snapshot());
+        return stats;
+    }
+
+    private static boolean isBatched(String eventKey) {
+        if (CHANGE_EVENT_NAME.equals(eventKey))
+            return false;
+        if (CHANGE_BATCH_EVENT_NAME.equals(eventKey))
+            return true;
+        throw new IllegalArgumentException("unknown event key");
+    }
+
+    @Override
+    public void run() {
+        try {
+            long wait = Long.MAX_VALUE;
+            for (; ; ) {
+                SensorData data = ring.poll(wait);
+                if (data != null) {
+                    defaultListener.offer(data);
+                    for (Listener listener : listeners.values())
+                        listener.offer(data);
+                } else if (ring.isClosed())
+                    return;
+                wait = flush();
+            }
+        } catch (InterruptedException e) {
+            // Stopping.
+        }
+    }
+
+    /**
+     * Queues every held back sample that is due.
+     *
+     * @return How long, in nanoseconds, until the next one is due.
+     */
+    private long flush() {
+        long now = System.nanoTime();
+        long wait = defaultListener.flush(now);
+        for (Listener listener : listeners.values())
+            wait = Math.min(wait, listener.flush(now));
+        return wait;
+    }
+
+    private static final class Key {
+        private final String eventKey;
+        private final UpNetworkInterface uni;
+
+        Key(String eventKey, UpNetworkInterface uni) {
+            this.eventKey = eventKey;
+            this.uni = uni;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return eventKey.equals(other.eventKey) && uni.equals(other.uni);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * eventKey.hashCode() + uni.hashCode();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.unbiquitous.unbihealth.imu.dispatch;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.SensorData;
+import org.unbiquitous.unbihealth.imu.stats.ListenerSnapshot;
+import org.unbiquitous.unbihealth.imu.stats.ListenerStats;
+import org.unbiquitous.unbihealth.imu.util.SampleCodec;
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
+import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.unbiquitous.unbihealth.imu.IMUDriver.BINARY_FORMAT;
+import static org.unbiquitous.unbihealth.imu.IMUDriver.CHANGE_BATCH_DATA_PARAM_NAME;
+import static org.unbiquitous.unbihealth.imu.IMUDriver.CHANGE_BATCH_EVENT_NAME;
+import static org.unbiquitous.unbihealth.imu.IMUDriver.CHANGE_EVENT_NAME;
+import static org.unbiquitous.unbihealth.imu.IMUDriver.CHANGE_NEW_DATA_PARAM_NAME;
+import static org.unbiquitous.unbihealth.imu.IMUDriver.DRIVER_NAME;
+import static org.unbiquitous.unbihealth.imu.IMUDriver.FORMAT_PARAM_NAME;
+
+/**
+ * A single notification target, with its own queue and worker thread, so it can't stall anyone else.
+ * <p>
+ * A batched listener receives {@link org.unbiquitous.unbihealth.imu.IMUDriver#CHANGE_BATCH_EVENT_NAME}
+ * events instead, each carrying every sample queued until either the maximum batch size or the maximum
+ * batch latency, counted from the first sample of the batch, is reached.
+ * <p>
+ * Samples left out by the listener's {@link Subscription} are discarded before being queued, so they cost
+ * neither serialization nor network traffic. Samples that come too soon for the subscription's maximum rate
+ * are held back instead, the latest one of each sensor replacing the previous, and queued by {@link #flush}
+ * once the interval is over, so the listener always ends up with a sensor's newest sample.
+ * <p>
+ * The queue never makes the fan-out thread wait: its overflow policy may discard samples, but never block
+ * (see {@link ListenerOptions}). Its timeout only bounds how long a sample waits to be sent, not the call to
+ * {@link Gateway#notify} itself, which can't be cancelled. If the gateway hangs, this listener's worker hangs
+ * with it and its queue overflows, discarding this listener's samples, while the other listeners and the
+ * sensors carry on.
+ */
+final class Listener implements Runnable {
+    private static final Logger logger = UOSLogging.getLogger();
+
+    private final Gateway gateway;
+    private final String instanceId;
+    private final UpDevice device;
+    private final SampleQueue queue;
+    private final boolean batched;
+    private final boolean binary;
+    private final int batchSize;
+    private final long batchLatency;
+    private final Subscription subscription;
+    // The throttling state of each sensor, only used by the fan-out thread.
+    private final Map<String, Throttle> throttles = new HashMap<>();
+    private int held = 0;
+    private final Thread worker;
+    private final ListenerStats stats = new ListenerStats();
+
+    Listener(Gateway gateway, String instanceId, UpDevice device, ListenerOptions options, boolean batched) {
+        this.gateway = gateway;
+        this.instanceId = instanceId;
+        this.device = device;
+        this.batched = batched;
+        this.binary = options.isBinary();
+        this.batchSize = options.getBatchSize();
+        this.batchLatency = TimeUnit.MILLISECONDS.toNanos(options.getBatchLatency());
+        this.subscription = options.getSubscription();
+        this.queue = new SampleQueue(options.getCapacity(), options.getPolicy(), options.getTimeout());
+        this.worker = new Thread(this, "imudriver-listener-" + getName());
+        this.worker.setDaemon(true);
+    }
+
+    void start() {
+        worker.start();
+    }
+
+    void stop() {
+        queue.close();
+        worker.interrupt();
+    }
+
+    /**
+     * Queues a sample, unless the subscription leaves it out or holds it back. Must only be called by the
+     * fan-out thread.
+     *
+     * @param data The sample.
+     * @return False if any sample had to be discarded because the queue was full.
+     */
+    boolean offer(SensorData data) {
+        if (!subscription.includes(data.getId())) {
+            stats.filtered();
+            return true;
+        }
+        if (!subscription.isThrottling())
+            return queue.offer(data);
+
+        Throttle throttle = throttles.get(data.getId());
+        if (throttle == null) {
+            throttle = new Throttle();
+            throttles.put(data.getId(), throttle);
+            return send(throttle, data);
+        }
+        Quaternion q = data.getQuaternion();
+        double offset = Math.max(Math.max(Math.abs(q.getQ0() - throttle.w), Math.abs(q.getQ1() - throttle.x)),
+                Math.max(Math.abs(q.getQ2() - throttle.y), Math.abs(q.getQ3() - throttle.z)));
+        if (offset < subscription.getSensitivity()) {
+            // Back to about the last sample sent, so whatever was held back is outdated.
+            if (release(throttle))
+                stats.filtered();
+            stats.filtered();
+            return true;
+        }
+        double elapsed = data.getTimestamp() - throttle.timestamp;
+        if (elapsed < subscription.getMinInterval()) {
+            if (throttle.held == null) {
+                ++held;
+                throttle.due = System.nanoTime() + (long) (TimeUnit.MILLISECONDS.toNanos(1) *
+                        Math.max(1, subscription.getMinInterval() - Math.max(elapsed, 0)));
+            } else
+                stats.filtered();
+            throttle.held = data;
+            return true;
+        }
+        if (release(throttle))
+            stats.filtered();
+        return send(throttle, data);
+    }
+
+    /**
+     * Queues the held back samples whose interval is over. Must only be called by the fan-out thread.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     * @return How long, in nanoseconds, until the next held back sample is due or {@link Long#MAX_VALUE}, if
+     * there's none.
+     */
+    long flush(long now) {
+        if (held == 0)
+            return Long.MAX_VALUE;
+        long wait = Long.MAX_VALUE;
+        for (Throttle throttle : throttles.values()) {
+            if (throttle.held == null)
+                continue;
+            long remaining = throttle.due - now;
+            if (remaining <= 0)
+                send(throttle, throttle.held);
+            else
+                wait = Math.min(wait, remaining);
+        }
+        return wait;
+    }
+
+    private boolean send(Throttle throttle, SensorData data) {
+        release(throttle);
+        Quaternion q = data.getQuaternion();
+        throttle.timestamp = data.getTimestamp();
+        throttle.w = q.getQ0();
+        throttle.x = q.getQ1();
+        throttle.y = q.getQ2();
+        throttle.z = q.getQ3();
+        return queue.offer(data);
+    }
+
+    /**
+     * Discards the sample held back of a sensor, if any.
+     *
+     * @return Whether there was one.
+     */
+    private boolean release(Throttle throttle) {
+        if (throttle.held == null)
+            return false;
+        throttle.held = null;
+        --held;
+        return true;
+    }
+
+    UpDevice getDevice() {
+        return device;
+    }
+
+    String getName() {
+        return device == null ? "<default>" : device.getName();
+    }
+
+    ListenerSnapshot snapshot() {
+        return ListenerSnapshot.of(getName(), batched ? CHANGE_BATCH_EVENT_NAME : CHANGE_EVENT_NAME, stats,
+                queue.getDropped(), queue.size());
+    }
+
+    @Override
+    public void run() {
+        try {
+            SensorData data;
+            while ((data = queue.poll(Long.MAX_VALUE)) != null) {
+                if (batched)
+                    deliver(collect(data));
+                else
+                    deliver(data);
+            }
+        } catch (InterruptedException e) {
+            // Stopping.
+        }
+    }
+
+    private List<SensorData> collect(SensorData first) throws InterruptedException {
+        List<SensorData> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+        long deadline = System.nanoTime() + batchLatency;
+        while (batch.size() < batchSize) {
+            SensorData data = queue.poll(deadline - System.nanoTime());
+            if (data == null)
+                break;
+            batch.add(data);
+        }
+        return batch;
+    }
+
+    private void deliver(SensorData data) {
+        Notify n = new Notify(CHANGE_EVENT_NAME, DRIVER_NAME, instanceId);
+        if (binary) {
+            n.addParameter(CHANGE_NEW_DATA_PARAM_NAME, SampleCodec.encodeSensorData(data));
+            n.addParameter(FORMAT_PARAM_NAME, BINARY_FORMAT);
+        } else
+            n.addParameter(CHANGE_NEW_DATA_PARAM_NAME, data);
+        send(n, 1);
+    }
+
+    private void deliver(List<SensorData> batch) {
+        Notify n = new Notify(CHANGE_BATCH_EVENT_NAME, DRIVER_NAME, instanceId);
+        if (binary) {
+            n.addParameter(CHANGE_BATCH_DATA_PARAM_NAME, SampleCodec.encodeSensorDataBatch(batch));
+            n.addParameter(FORMAT_PARAM_NAME, BINARY_FORMAT);
+        } else
+            n.addParameter(CHANGE_BATCH_DATA_PARAM_NAME, batch);
+        send(n, batch.size());
+    }
+
+    private void send(Notify n, int samples) {
+        long start = System.nanoTime();
+        try {
+            gateway.notify(n, device);
+            stats.sent(samples, System.nanoTime() - start);
+        } catch (NotifyException | RuntimeException e) {
+            stats.failed(System.nanoTime() - start);
+            logger.log(Level.SEVERE, "Failed to notify listener '" + getName() + "'.", e);
+        }
+    }
+
+    /**
+     * The last sample queued of a sensor and the one held back since, if any.
+     */
+    private static final class Throttle {
+        long timestamp;
+        double w, x, y, z;
+        SensorData held;
+        // When the held back sample is due, by System.nanoTime().
+        long due;
+    }
+}
@@ -0,0 +1,126 @@
+package org.unbiquitous.unbihealth.imu.dispatch;
+
+/**
+ * Delivery options of a single listener: the size of its queue, what to do when it overflows, how
+ * long a notification may wait for it, whether to send it binary data, which samples it subscribed to and,
+ * for batched listeners, when to flush a batch.
+ */
+public final class ListenerOptions {
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long timeout;
+    private final int batchSize;
+    private final long batchLatency;
+    private final boolean binary;
+    private final Subscription subscription;
+
+    /**
+     * @param capacity The maximum number of notifications queued for the listener.
+     * @param policy   What to do when the queue is full, anything but {@link OverflowPolicy#BLOCK}.
+     * @param timeout      How long, in milliseconds, a notification may wait in the listener's queue before
+     *                     being discarded; zero means forever. It doesn't bound the delivery itself.
+     * @param batchSize    The maximum number of samples in a batch.
+     * @param batchLatency How long, in milliseconds, a batch may wait for more samples before being sent.
+     * @param binary       Whether to send samples in the binary format of
+     *                     {@link org.unbiquitous.unbihealth.imu.util.SampleCodec} instead of JSON.
+     * @throws IllegalArgumentException If capacity or batch size is not positive, any time is negative or the
+     *                                  policy is {@link OverflowPolicy#BLOCK}.
+     * @throws NullPointerException     If policy is null.
+     */
+    public ListenerOptions(int capacity, OverflowPolicy policy, long timeout, int batchSize, long batchLatency,
+                           boolean binary) {
+        this(capacity, policy, timeout, batchSize, batchLatency, binary, Subscription.ALL);
+    }
+
+    private ListenerOptions(int capacity, OverflowPolicy policy, long timeout, int batchSize, long batchLatency,
+                            boolean binary, Subscription subscription) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("non-positive capacity");
+        if (policy == null)
+            throw new NullPointerException("policy");
+        // A listener's queue is filled by the fan-out thread shared by every listener, which must never wait.
+        if (policy == OverflowPolicy.BLOCK)
+            throw new IllegalArgumentException("block overflow policy not supported by listeners");
+        if (timeout < 0)
+            throw new IllegalArgumentException("negative timeout");
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("non-positive batch size");
+        if (batchLatency < 0)
+            throw new IllegalArgumentException("negative batch latency");
+
+        this.capacity = capacity;
+        this.policy = policy;
+        this.timeout = timeout;
+        this.batchSize = batchSize;
+        this.batchLatency = batchLatency;
+        this.binary = binary;
+        this.subscription = subscription;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchLatency() {
+        return batchLatency;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public Subscription getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * @return A copy of these options with the given policy.
+     * @throws IllegalArgumentException If the policy is {@link OverflowPolicy#BLOCK}.
+     */
+    public ListenerOptions withPolicy(OverflowPolicy policy) {
+        return new ListenerOptions(capacity, policy, timeout, batchSize, batchLatency, binary, subscription);
+    }
+
+    /**
+     * @return A copy of these options with the given timeout.
+     */
+    public ListenerOptions withTimeout(long timeout) {
+        return new ListenerOptions(capacity, policy, timeout, batchSize, batchLatency, binary, subscription);
+    }
+
+    /**
+     * @return A copy of these options with the given batch flush limits.
+     */
+    public ListenerOptions withBatch(int batchSize, long batchLatency) {
+        return new ListenerOptions(capacity, policy, timeout, batchSize, batchLatency, binary, subscription);
+    }
+
+    /**
+     * @return A copy of these options with the given data format.
+     */
+    public ListenerOptions withBinary(boolean binary) {
+        return new ListenerOptions(capacity, policy, timeout, batchSize, batchLatency, binary, subscription);
+    }
+
+    /**
+     * @return A copy of these options with the given subscription.
+     * @throws NullPointerException If subscription is null.
+     */
+    public ListenerOptions withSubscription(Subscription subscription) {
+        if (subscription == null)
+            throw new NullPointerException("subscription");
+        return new ListenerOptions(capacity, policy, timeout, batchSize, batchLatency, binary, subscription);
+    }
+}
@@ -0,0 +1,35 @@
+package org.unbiquitous.unbihealth.imu.dispatch;
+
+/**
+ * What a dispatch queue does with a new sample when it's already full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Discards the oldest queued sample to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Replaces the newest queued sample of the same sensor with the new one, so consumers always end
+     * up with the latest orientation of each sensor. If no sample of that sensor is queued, behaves
+     * like {@link #DROP_OLDEST}.
+     */
+    LATEST_WINS,
+    /**
+     * Makes the producer wait for room, up to the queue's timeout. If the timeout expires, the new
+     * sample is discarded. Only for the dispatch ring buffer: a listener's queue is filled by the fan-out
+     * thread shared by every listener, so waiting on it would stall them all.
+     */
+    BLOCK;
+
+    /**
+     * Parses a policy name, case insensitive, accepting either '-' or '_' as word separator
+     * (e.g. "drop-oldest", "LATEST_WINS").
+     *
+     * @param name The policy name.
+     * @return The corresponding policy.
+     * @throws IllegalArgumentException If the name doesn't match any policy.
+     */
+    public static OverflowPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,235 @@
+package org.unbiquitous.unbihealth.imu.dispatch;
+
+import org.unbiquitous.unbihealth.imu.SensorData;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring buffer of samples that applies an {@link OverflowPolicy} when full.
+ * <p>
+ * The timeout bounds both how long a producer may wait for room (under {@link OverflowPolicy#BLOCK})
+ * and how long a sample may stay queued: samples older than that are discarded instead of being
+ * delivered late.
+ */
+final class SampleQueue {
+    private final SensorData[] items;
+    private final long[] times;
+    private final OverflowPolicy policy;
+    private final long timeout;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head = 0, count = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+
+    /**
+     * @param capacity The maximum number of queued samples.
+     * @param policy   What to do when full.
+     * @param timeout  The timeout, in milliseconds; zero means no timeout.
+     */
+    SampleQueue(int capacity, OverflowPolicy policy, long timeout) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("non-positive capacity");
+        if (policy == null)
+            throw new NullPointerException("policy");
+        if (timeout < 0)
+            throw new IllegalArgumentException("negative timeout");
+
+        this.items = new SensorData[capacity];
+        this.times = new long[capacity];
+        this.policy = policy;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Queues a sample, applying the overflow policy if necessary.
+     *
+     * @param data The new sample.
+     * @return False if any sample, either an old one or the new one, had to be discarded.
+     */
+    boolean offer(SensorData data) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            return enqueue(data, now);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ++dropped;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues several samples, in order, taking the lock only once.
+     *
+     * @param batch The new samples.
+     * @return False if any sample, either an old one or a new one, had to be discarded.
+     */
+    boolean offerAll(List<SensorData> batch) {
+        long now = System.nanoTime();
+        int i = 0;
+        lock.lock();
+        try {
+            boolean kept = true;
+            for (; i < batch.size(); ++i)
+                kept &= enqueue(batch.get(i), now);
+            return kept;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped += batch.size() - i;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(SensorData data, long now) throws InterruptedException {
+        if (closed)
+            return false;
+
+        boolean lost = false;
+        if (count == items.length) {
+            switch (policy) {
+                case BLOCK:
+                    long wait = timeout;
+                    while ((count == items.length) && !closed) {
+                        if (timeout == 0)
+                            notFull.await();
+                        else if (wait > 0)
+                            wait = notFull.awaitNanos(wait);
+                        else {
+                            ++dropped;
+                            return false;
+                        }
+                    }
+                    if (closed)
+                        return false;
+                    break;
+
+                case LATEST_WINS:
+                    for (int i = count - 1; i >= 0; --i) {
+                        int j = index(i);
+                        if (items[j].getId().equals(data.getId())) {
+                            items[j] = data;
+                            times[j] = now;
+                            ++dropped;
+                            return false;
+                        }
+                    }
+                    // No sample of this sensor queued, falls through to drop the oldest.
+
+                case DROP_OLDEST:
+                    items[head] = null;
+                    head = index(1);
+                    --count;
+                    ++dropped;
+                    lost = true;
+                    break;
+            }
+        }
+
+        int tail = index(count);
+        items[tail] = data;
+        times[tail] = now;
+        ++count;
+        notEmpty.signal();
+        return !lost;
+    }
+
+    /**
+     * Retrieves and removes the oldest sample that hasn't timed out yet, waiting if necessary.
+     *
+     * @param wait How long to wait for a sample, in nanoseconds.
+     * @return The sample or null if none arrived in time or the queue was closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    SensorData poll(long wait) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                while (count == 0) {
+                    if (closed || (wait <= 0))
+                        return null;
+                    wait = notEmpty.awaitNanos(wait);
+                }
+
+                SensorData data = items[head];
+                long time = times[head];
+                items[head] = null;
+                head = index(1);
+                --count;
+                notFull.signal();
+
+                if ((timeout == 0) || ((System.nanoTime() - time) <= timeout))
+                    return data;
+                ++dropped;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue, waking up every waiting producer and consumer. Queued samples are discarded.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (int i = 0; i < count; ++i)
+                items[index(i)] = null;
+            dropped += count;
+            count = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Whether the queue was closed.
+     */
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return How many samples were discarded so far, either by the overflow policy or by timeout.
+     */
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return How many samples are queued.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int index(int i) {
+        return (head + i) % items.length;
+    }
+}
@@ -0,0 +1,78 @@
+package org.unbiquitous.unbihealth.imu.dispatch;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What a listener asked to receive: which sensors, at most how often and how large a change must be to be
+ * sent again. These are applied on top of the driver-wide minimum update interval and sensitivity, so they
+ * can only make a listener receive less.
+ */
+public final class Subscription {
+    /**
+     * Every sample of every sensor.
+     */
+    public static final Subscription ALL = new Subscription(null, 0, 0);
+
+    private final Set<String> sensorIds;
+    private final double maxRate;
+    private final double minInterval;
+    private final double sensitivity;
+
+    /**
+     * @param sensorIds   The ids of the sensors to receive or null, for all of them.
+     * @param maxRate     The maximum number of samples per second of each sensor, by their timestamps; zero
+     *                    means no limit.
+     * @param sensitivity The minimum change of any quaternion component, since the last sample sent of the
+     *                    same sensor, for a sample to be sent.
+     * @throws IllegalArgumentException If the rate or the sensitivity is negative.
+     */
+    public Subscription(Set<String> sensorIds, double maxRate, double sensitivity) {
+        if (!(maxRate >= 0))
+            throw new IllegalArgumentException("negative max rate");
+        if (!(sensitivity >= 0))
+            throw new IllegalArgumentException("negative sensitivity");
+        this.sensorIds = sensorIds == null ? null : Collections.unmodifiableSet(new HashSet<>(sensorIds));
+        this.maxRate = maxRate;
+        this.minInterval = maxRate == 0 ? 0 : 1000 / maxRate;
+        this.sensitivity = sensitivity;
+    }
+
+    /**
+     * @return The ids of the sensors to receive or null, for all of them.
+     */
+    public Set<String> getSensorIds() {
+        return sensorIds;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    public double getSensitivity() {
+        return sensitivity;
+    }
+
+    /**
+     * @param sensorId A sensor id.
+     * @return Whether the sensor's samples are to be received.
+     */
+    public boolean includes(String sensorId) {
+        return (sensorIds == null) || sensorIds.contains(sensorId);
+    }
+
+    /**
+     * @return The minimum time, in milliseconds, between two samples of the same sensor.
+     */
+    double getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return Whether samples must be compared with the last one sent.
+     */
+    boolean isThrottling() {
+        return (minInterval > 0) || (sensitivity > 0);
+    }
+}
@@ -0,0 +1,141 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores a curve of samples in columns of primitive arrays: one for the timestamps and one for each
+ * quaternion component. Columns grow in fixed-size chunks, so appending never copies stored samples and
+ * each sample costs 40 bytes, with no per-sample objects.
+ * <p>
+ * {@link Sample} objects are only created on demand, when read through {@link #asList()}.
+ */
+public final class ChunkedSampleStore implements SampleStore {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private long[][] timestamps = new long[4][];
+    private double[][] w = new double[4][], x = new double[4][], y = new double[4][], z = new double[4][];
+    private int size = 0;
+    private final List<Sample> view = new SampleList(this);
+
+    /**
+     * Copies a range of samples from another store.
+     *
+     * @param source The store to copy from.
+     * @param from   The position of the first sample to copy, inclusive.
+     * @param to     The position of the last sample to copy, exclusive.
+     * @return A new store, holding only the copied samples.
+     * @throws IndexOutOfBoundsException If the range is not within the source.
+     */
+    public static ChunkedSampleStore copyOf(SampleStore source, int from, int to) {
+        ChunkedSampleStore copy = new ChunkedSampleStore();
+        for (int i = from; i < to; ++i)
+            copy.add(source.getTimestamp(i), source.getW(i), source.getX(i), source.getY(i), source.getZ(i));
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(long timestamp, double w, double x, double y, double z) {
+        int chunk = size >>> CHUNK_BITS;
+        if (chunk == timestamps.length)
+            grow();
+        if (timestamps[chunk] == null) {
+            timestamps[chunk] = new long[CHUNK_SIZE];
+            this.w[chunk] = new double[CHUNK_SIZE];
+            this.x[chunk] = new double[CHUNK_SIZE];
+            this.y[chunk] = new double[CHUNK_SIZE];
+            this.z[chunk] = new double[CHUNK_SIZE];
+        }
+        write(size, timestamp, w, x, y, z);
+        ++size;
+    }
+
+    @Override
+    public void set(int index, long timestamp, double w, double x, double y, double z) {
+        check(index);
+        write(index, timestamp, w, x, y, z);
+    }
+
+    @Override
+    public long getTimestamp(int index) {
+        check(index);
+        return timestamps[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    public double getW(int index) {
+        check(index);
+        return w[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    public double getX(int index) {
+        check(index);
+        return x[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    public double getY(int index) {
+        check(index);
+        return y[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    public double getZ(int index) {
+        check(index);
+        return z[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /**
+     * @return The size of the allocated chunks, in bytes.
+     */
+    @Override
+    public long getMemoryUsage() {
+        return 40L * CHUNK_SIZE * ((size + CHUNK_MASK) >>> CHUNK_BITS);
+    }
+
+    @Override
+    public Sample get(int index) {
+        check(index);
+        int chunk = index >>> CHUNK_BITS, i = index & CHUNK_MASK;
+        return new Sample(timestamps[chunk][i], new Quaternion(w[chunk][i], x[chunk][i], y[chunk][i], z[chunk][i]));
+    }
+
+    @Override
+    public List<Sample> asList() {
+        return view;
+    }
+
+    private void write(int index, long timestamp, double w, double x, double y, double z) {
+        int chunk = index >>> CHUNK_BITS, i = index & CHUNK_MASK;
+        timestamps[chunk][i] = timestamp;
+        this.w[chunk][i] = w;
+        this.x[chunk][i] = x;
+        this.y[chunk][i] = y;
+        this.z[chunk][i] = z;
+    }
+
+    private void grow() {
+        int n = timestamps.length * 2;
+        timestamps = Arrays.copyOf(timestamps, n);
+        w = Arrays.copyOf(w, n);
+        x = Arrays.copyOf(x, n);
+        y = Arrays.copyOf(y, n);
+        z = Arrays.copyOf(z, n);
+    }
+
+    private void check(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
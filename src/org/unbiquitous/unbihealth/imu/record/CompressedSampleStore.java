@@ -0,0 +1,316 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import org.unbiquitous.unbihealth.imu.util.SampleCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Stores a curve of samples compactly, for recordings that are done changing.
+ * <p>
+ * Quaternion components are quantized to 16 bits, as in {@link SampleCodec}, so each decoded component is
+ * within {@link #MAX_ERROR} of the original, as long as it was in [-1, 1] (values outside are clamped).
+ * Timestamps are grouped in blocks of {@value #BLOCK_SIZE}: the first one of each block is stored as is and
+ * each following one as the zigzag varint difference between its delta and the previous delta, so a steady
+ * sample rate costs a single byte per sample. Altogether, a sample takes a little over 9 bytes.
+ * <p>
+ * Timestamps are decoded lazily, from the start of their block, and the decoding position is kept between
+ * calls, so reading the curve in order decodes each timestamp only once. Samples are meant to be appended;
+ * replacing one re-encodes the timestamps of its block, so it costs up to a block's worth of work. The same
+ * representation is used at rest, by {@link #save(Path)} and {@link #load(Path)}.
+ */
+public final class CompressedSampleStore implements SampleStore {
+    public static final int MAGIC = 0x494D5543;
+    public static final int VERSION = 1;
+    public static final int BLOCK_SIZE = 64;
+    /**
+     * The maximum absolute error of a decoded quaternion component.
+     */
+    public static final double MAX_ERROR = SampleCodec.MAX_ERROR;
+    private static final int BLOCK_BITS = 6;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    private short[] components;
+    private long[] blockStarts;
+    private int[] blockOffsets;
+    private byte[] deltas;
+    private int size = 0, deltaSize = 0;
+    private long lastTimestamp, lastDelta;
+    // The last decoded timestamp, guarded by this.
+    private int cursorIndex = -1, cursorOffset;
+    private long cursorTimestamp, cursorDelta;
+
+    public CompressedSampleStore() {
+        this(BLOCK_SIZE);
+    }
+
+    /**
+     * @param capacity How many samples to make room for upfront.
+     */
+    public CompressedSampleStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        components = new short[4 * capacity];
+        blockStarts = new long[(capacity + BLOCK_MASK) >>> BLOCK_BITS];
+        blockOffsets = new int[blockStarts.length];
+        deltas = new byte[capacity];
+    }
+
+    /**
+     * Compresses another store.
+     *
+     * @param source The store to compress.
+     * @return A new store, holding every sample of the source, trimmed to size.
+     */
+    public static CompressedSampleStore copyOf(SampleStore source) {
+        int n = source.size();
+        CompressedSampleStore copy = new CompressedSampleStore(n);
+        for (int i = 0; i < n; ++i)
+            copy.add(source.getTimestamp(i), source.getW(i), source.getX(i), source.getY(i), source.getZ(i));
+        copy.trim();
+        return copy;
+    }
+
+    /**
+     * Loads a store saved by {@link #save(Path)}.
+     *
+     * @param path The file's path.
+     * @return The loaded store.
+     * @throws IOException If the file can't be read or is not a valid compressed recording.
+     */
+    public static CompressedSampleStore load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+                throw new IOException("not a compressed recording or unsupported version: " + path);
+            int size = in.readInt(), deltaSize = in.readInt();
+            if ((size < 0) || (deltaSize < 0) || (deltaSize > 10L * size))
+                throw new IOException("corrupt compressed recording: " + path);
+
+            CompressedSampleStore store = new CompressedSampleStore(size);
+            int blocks = (size + BLOCK_MASK) >>> BLOCK_BITS;
+            for (int i = 0; i < blocks; ++i)
+                store.blockStarts[i] = in.readLong();
+            for (int i = 0; i < blocks; ++i) {
+                store.blockOffsets[i] = in.readInt();
+                if ((store.blockOffsets[i] < 0) || (store.blockOffsets[i] > deltaSize))
+                    throw new IOException("corrupt compressed recording: " + path);
+            }
+            store.deltas = new byte[Math.max(deltaSize, 1)];
+            in.readFully(store.deltas, 0, deltaSize);
+            for (int i = 0; i < 4 * size; ++i)
+                store.components[i] = in.readShort();
+            store.size = size;
+            store.deltaSize = deltaSize;
+
+            if (size > 0) {
+                store.lastTimestamp = store.getTimestamp(size - 1);
+                store.lastDelta = ((size - 1) & BLOCK_MASK) == 0
+                        ? 0 : store.lastTimestamp - store.getTimestamp(size - 2);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Saves the store to a file, in its compressed form, replacing any existing one.
+     *
+     * @param path The file's path.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(deltaSize);
+            int blocks = (size + BLOCK_MASK) >>> BLOCK_BITS;
+            for (int i = 0; i < blocks; ++i)
+                out.writeLong(blockStarts[i]);
+            for (int i = 0; i < blocks; ++i)
+                out.writeInt(blockOffsets[i]);
+            out.write(deltas, 0, deltaSize);
+            for (int i = 0; i < 4 * size; ++i)
+                out.writeShort(components[i]);
+        }
+    }
+
+    /**
+     * Shrinks the internal arrays to the stored samples.
+     */
+    public void trim() {
+        int blocks = (size + BLOCK_MASK) >>> BLOCK_BITS;
+        components = Arrays.copyOf(components, 4 * size);
+        blockStarts = Arrays.copyOf(blockStarts, blocks);
+        blockOffsets = Arrays.copyOf(blockOffsets, blocks);
+        deltas = Arrays.copyOf(deltas, deltaSize);
+    }
+
+    /**
+     * @return The size of the internal arrays, in bytes.
+     */
+    @Override
+    public long getMemoryUsage() {
+        return 2L * components.length + 8L * blockStarts.length + 4L * blockOffsets.length + deltas.length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(long timestamp, double w, double x, double y, double z) {
+        int block = size >>> BLOCK_BITS;
+        if ((size & BLOCK_MASK) == 0) {
+            if (block == blockStarts.length) {
+                blockStarts = Arrays.copyOf(blockStarts, Math.max(2 * block, 1));
+                blockOffsets = Arrays.copyOf(blockOffsets, blockStarts.length);
+            }
+            blockStarts[block] = timestamp;
+            blockOffsets[block] = deltaSize;
+            lastDelta = 0;
+        } else {
+            long delta = timestamp - lastTimestamp;
+            writeZigzag(delta - lastDelta);
+            lastDelta = delta;
+        }
+        lastTimestamp = timestamp;
+
+        int i = 4 * size;
+        if (i == components.length)
+            components = Arrays.copyOf(components, Math.max(2 * i, 4));
+        components[i] = SampleCodec.quantize(w);
+        components[i + 1] = SampleCodec.quantize(x);
+        components[i + 2] = SampleCodec.quantize(y);
+        components[i + 3] = SampleCodec.quantize(z);
+        ++size;
+    }
+
+    /**
+     * Replaces a sample, re-encoding the timestamps of its block.
+     */
+    @Override
+    public synchronized void set(int index, long timestamp, double w, double x, double y, double z) {
+        check(index);
+        int block = index >>> BLOCK_BITS;
+        int first = block << BLOCK_BITS;
+        int count = Math.min(size - first, BLOCK_SIZE);
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; ++i)
+            timestamps[i] = getTimestamp(first + i);
+        timestamps[index - first] = timestamp;
+
+        byte[] encoded = new byte[10 * count];
+        int length = 0;
+        long delta = 0;
+        for (int i = 1; i < count; ++i) {
+            long next = timestamps[i] - timestamps[i - 1];
+            length = putZigzag(encoded, length, next - delta);
+            delta = next;
+        }
+
+        // Splices the new deltas in place of the old ones, moving the following blocks if the length changed.
+        boolean lastBlock = first + count == size;
+        int start = blockOffsets[block];
+        int end = lastBlock ? deltaSize : blockOffsets[block + 1];
+        int shift = length - (end - start);
+        if (shift != 0) {
+            if (deltaSize + shift > deltas.length)
+                deltas = Arrays.copyOf(deltas, Math.max(2 * deltas.length, deltaSize + shift));
+            System.arraycopy(deltas, end, deltas, end + shift, deltaSize - end);
+            deltaSize += shift;
+            for (int b = block + 1, blocks = (size + BLOCK_MASK) >>> BLOCK_BITS; b < blocks; ++b)
+                blockOffsets[b] += shift;
+        }
+        System.arraycopy(encoded, 0, deltas, start, length);
+        blockStarts[block] = timestamps[0];
+        if (lastBlock) {
+            lastTimestamp = timestamps[count - 1];
+            lastDelta = delta;
+        }
+        cursorIndex = -1;
+
+        int i = 4 * index;
+        components[i] = SampleCodec.quantize(w);
+        components[i + 1] = SampleCodec.quantize(x);
+        components[i + 2] = SampleCodec.quantize(y);
+        components[i + 3] = SampleCodec.quantize(z);
+    }
+
+    @Override
+    public synchronized long getTimestamp(int index) {
+        check(index);
+        int block = index >>> BLOCK_BITS;
+        if ((cursorIndex < 0) || (cursorIndex > index) || ((cursorIndex >>> BLOCK_BITS) != block)) {
+            cursorIndex = block << BLOCK_BITS;
+            cursorTimestamp = blockStarts[block];
+            cursorDelta = 0;
+            cursorOffset = blockOffsets[block];
+        }
+        while (cursorIndex < index) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = deltas[cursorOffset++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    break;
+            }
+            cursorDelta += (value >>> 1) ^ -(value & 1);
+            cursorTimestamp += cursorDelta;
+            ++cursorIndex;
+        }
+        return cursorTimestamp;
+    }
+
+    @Override
+    public double getW(int index) {
+        return SampleCodec.dequantize(components[4 * check(index)]);
+    }
+
+    @Override
+    public double getX(int index) {
+        return SampleCodec.dequantize(components[4 * check(index) + 1]);
+    }
+
+    @Override
+    public double getY(int index) {
+        return SampleCodec.dequantize(components[4 * check(index) + 2]);
+    }
+
+    @Override
+    public double getZ(int index) {
+        return SampleCodec.dequantize(components[4 * check(index) + 3]);
+    }
+
+    private void writeZigzag(long value) {
+        if (deltaSize + 10 > deltas.length)
+            deltas = Arrays.copyOf(deltas, Math.max(2 * deltas.length, deltaSize + 10));
+        deltaSize = putZigzag(deltas, deltaSize, value);
+    }
+
+    /**
+     * Writes a zigzag varint, which takes up to 10 bytes.
+     *
+     * @return The offset after the written bytes.
+     */
+    private static int putZigzag(byte[] bytes, int offset, long value) {
+        value = (value << 1) ^ (value >> 63);
+        while ((value & ~0x7FL) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    private int check(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return index;
+    }
+}
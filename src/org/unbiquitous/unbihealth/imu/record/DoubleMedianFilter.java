@@ -0,0 +1,94 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import java.util.Arrays;
+
+/**
+ * A {@link MedianFilter} specialized for <code>double</code> samples. It stores the last <code>k</code>
+ * samples in a ring buffer and keeps a sorted copy of them up to date, so each new sample costs two
+ * binary searches and a single shift of at most <code>k</code> elements, with no allocation nor boxing.
+ * For better results, <code>k</code> should be odd.
+ */
+public final class DoubleMedianFilter {
+    private final double[] lastSamples;
+    private final double[] sorted;
+    private int k;
+    private int next;
+
+    /**
+     * Creates a new instance of the filter, with k = 3.
+     *
+     * @return A new median filter.
+     * @see #create(int)
+     */
+    public static DoubleMedianFilter create() {
+        return create(3);
+    }
+
+    /**
+     * Creates a new instance of the filter.
+     *
+     * @param k The number of samples to consider.
+     * @return A new median filter.
+     * @throws IllegalArgumentException If k < 3.
+     */
+    public static DoubleMedianFilter create(int k) {
+        return new DoubleMedianFilter(k);
+    }
+
+    private DoubleMedianFilter(int k) {
+        if (k < 3)
+            throw new IllegalArgumentException("k to small");
+
+        this.lastSamples = new double[k];
+        this.sorted = new double[k];
+        this.k = 0;
+        this.next = 0;
+    }
+
+    /**
+     * Stores the given sample at the end of the sequence of last k samples, discarding the oldest
+     * one if necessary, and returns the median of these samples.
+     *
+     * @param point The new sample.
+     * @return The current median of the last k samples.
+     */
+    public double sample(double point) {
+        if (k < lastSamples.length) {
+            // Did not fill the window yet, just inserts.
+            lastSamples[k] = point;
+            int i = insertionPoint(point, k);
+            System.arraycopy(sorted, i, sorted, i + 1, k - i);
+            sorted[i] = point;
+            ++k;
+        } else {
+            // Already filled, replaces the oldest sample.
+            double oldest = lastSamples[next];
+            lastSamples[next] = point;
+            next = (next + 1) % k;
+
+            int from = Arrays.binarySearch(sorted, 0, k, oldest);
+            int to = insertionPoint(point, k);
+            if (to > from) {
+                System.arraycopy(sorted, from + 1, sorted, from, to - from - 1);
+                sorted[to - 1] = point;
+            } else {
+                System.arraycopy(sorted, to, sorted, to + 1, from - to);
+                sorted[to] = point;
+            }
+        }
+
+        return k < 3 ? point : sorted[k / 2];
+    }
+
+    /**
+     * @return The maximum number of samples considered.
+     */
+    public int getWindowSize() {
+        return lastSamples.length;
+    }
+
+    private int insertionPoint(double point, int count) {
+        int i = Arrays.binarySearch(sorted, 0, count, point);
+        return i < 0 ? -(i + 1) : i;
+    }
+}
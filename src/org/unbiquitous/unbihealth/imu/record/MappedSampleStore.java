@@ -0,0 +1,213 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores a curve of samples in a memory-mapped file, so long recordings live in the page cache instead
+ * of the heap.
+ * <p>
+ * The file layout is fixed and big-endian: a {@value #HEADER_SIZE}-byte header, holding the magic number
+ * {@value #MAGIC}, the format version, the record size and the number of samples, followed by one
+ * {@value #RECORD_SIZE}-byte record per sample, holding its timestamp (long) and w, x, y and z (doubles).
+ * The sample count is updated on every append, so the file is readable at any moment. The file grows
+ * in increasingly large steps and may extend past the last record.
+ */
+public final class MappedSampleStore implements SampleStore, Closeable {
+    public static final int MAGIC = 0x494D5552;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 40;
+    private static final int COUNT_OFFSET = 12;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean writable;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+
+    private MappedSampleStore(Path path, FileChannel channel, boolean writable, int capacity, int size)
+            throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.writable = writable;
+        this.size = size;
+        map(capacity);
+    }
+
+    /**
+     * Creates a new, empty recording file, replacing any existing one.
+     *
+     * @param path The file's path.
+     * @return The store, open for appending.
+     * @throws IOException If the file can't be created or mapped.
+     */
+    public static MappedSampleStore create(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedSampleStore store = new MappedSampleStore(path, channel, true, INITIAL_CAPACITY, 0);
+            store.buffer.putInt(0, MAGIC);
+            store.buffer.putInt(4, VERSION);
+            store.buffer.putInt(8, RECORD_SIZE);
+            store.buffer.putLong(COUNT_OFFSET, 0);
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing recording file for reading.
+     *
+     * @param path The file's path.
+     * @return The store, read only.
+     * @throws IOException If the file can't be read or is not a valid recording file.
+     */
+    public static MappedSampleStore open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length < HEADER_SIZE)
+                throw new IOException("not a recording file: " + path);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION) || (header.getInt(8) != RECORD_SIZE))
+                throw new IOException("not a recording file or unsupported version: " + path);
+            long count = header.getLong(COUNT_OFFSET);
+            if ((count < 0) || (HEADER_SIZE + count * RECORD_SIZE > length))
+                throw new IOException("corrupt recording file: " + path);
+            return new MappedSampleStore(path, channel, false, (int) count, (int) count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The path of the backing file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UncheckedIOException  If the file can't grow.
+     * @throws IllegalStateException If the store is read only or the file reached its maximum size.
+     */
+    @Override
+    public void add(long timestamp, double w, double x, double y, double z) {
+        if (!writable)
+            throw new IllegalStateException("read only store");
+        if (size == capacity) {
+            if (capacity == MAX_CAPACITY)
+                throw new IllegalStateException("recording file is full");
+            try {
+                map((int) Math.min((long) capacity * 2, MAX_CAPACITY));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        write(size, timestamp, w, x, y, z);
+        buffer.putLong(COUNT_OFFSET, ++size);
+    }
+
+    @Override
+    public void set(int index, long timestamp, double w, double x, double y, double z) {
+        if (!writable)
+            throw new IllegalStateException("read only store");
+        check(index);
+        write(index, timestamp, w, x, y, z);
+    }
+
+    @Override
+    public long getTimestamp(int index) {
+        check(index);
+        return buffer.getLong(offset(index));
+    }
+
+    @Override
+    public double getW(int index) {
+        check(index);
+        return buffer.getDouble(offset(index) + 8);
+    }
+
+    @Override
+    public double getX(int index) {
+        check(index);
+        return buffer.getDouble(offset(index) + 16);
+    }
+
+    @Override
+    public double getY(int index) {
+        check(index);
+        return buffer.getDouble(offset(index) + 24);
+    }
+
+    @Override
+    public double getZ(int index) {
+        check(index);
+        return buffer.getDouble(offset(index) + 32);
+    }
+
+    /**
+     * @return Zero, since the data lives in the page cache, not in the heap.
+     */
+    @Override
+    public long getMemoryUsage() {
+        return 0;
+    }
+
+    /**
+     * Flushes the data to disk and closes the file. The samples stay readable through the mapping.
+     *
+     * @throws IOException If flushing or closing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+        if (writable)
+            buffer.force();
+        channel.close();
+    }
+
+    private void map(int capacity) throws IOException {
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        buffer = channel.map(mode, 0, offset(capacity));
+        this.capacity = capacity;
+    }
+
+    private void write(int index, long timestamp, double w, double x, double y, double z) {
+        int offset = offset(index);
+        buffer.putLong(offset, timestamp);
+        buffer.putDouble(offset + 8, w);
+        buffer.putDouble(offset + 16, x);
+        buffer.putDouble(offset + 24, y);
+        buffer.putDouble(offset + 32, z);
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private void check(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
@@ -3,11 +3,8 @@ package org.unbiquitous.unbihealth.imu.record;
 import org.apache.commons.math3.complex.Quaternion;
 import org.unbiquitous.unbihealth.imu.Sample;
 
-import java.util.ArrayList;
 import java.util.List;
 
-import static org.unbiquitous.unbihealth.imu.util.QuaternionUtils.interpolate;
-
 /**
  * Holds a sensor's recorded curve.
  *
@@ -16,68 +13,167 @@ import static org.unbiquitous.unbihealth.imu.util.QuaternionUtils.interpolate;
 public class Recorder {
     private String id;
     private int step;
-    private MedianFilter<?>[] filters;
+    private DoubleMedianFilter[] filters;
     private boolean interpolate;
-    private List<Sample> data;
+    private SampleStore data;
+    private boolean finished = false;
+    private final long startTime = System.currentTimeMillis();
 
     public Recorder(String id, int step, boolean interpolate) {
+        this(id, step, interpolate, 3);
+    }
+
+    /**
+     * @param id          The recording's id.
+     * @param step        The minimum time between recorded samples or, if interpolating, the fixed time step.
+     * @param interpolate Whether to resample the curve at fixed steps.
+     * @param filterSize  The window size of the median filter applied to each quaternion component.
+     * @throws IllegalArgumentException If filterSize < 3.
+     */
+    public Recorder(String id, int step, boolean interpolate, int filterSize) {
+        this(id, step, interpolate, filterSize, new ChunkedSampleStore());
+    }
+
+    /**
+     * @param id          The recording's id.
+     * @param step        The minimum time between recorded samples or, if interpolating, the fixed time step.
+     * @param interpolate Whether to resample the curve at fixed steps.
+     * @param filterSize  The window size of the median filter applied to each quaternion component.
+     * @param store       Where to store the recorded curve.
+     * @throws IllegalArgumentException If filterSize < 3.
+     * @throws NullPointerException     If store is null.
+     */
+    public Recorder(String id, int step, boolean interpolate, int filterSize, SampleStore store) {
+        if (store == null)
+            throw new NullPointerException("store");
+
         this.id = id;
         this.step = step;
         this.interpolate = interpolate;
 
-        filters = new MedianFilter<?>[4];
+        filters = new DoubleMedianFilter[4];
         for (int i = 0; i < filters.length; ++i)
-            filters[i] = MedianFilter.create(Double.class);
+            filters[i] = DoubleMedianFilter.create(filterSize);
 
-        data = new ArrayList<>();
+        data = store;
     }
 
     public String getId() {
         return id;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * @return When the recording started, in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return Whether the curve is resampled at fixed steps.
+     */
+    public boolean isInterpolating() {
+        return interpolate;
+    }
+
+    /**
+     * Filters and records a sample.
+     * <p>
+     * Without interpolation, a sample arriving less than a step after the previous recorded one replaces
+     * the last sample. With interpolation, every filtered sample is appended as is, and the curve is only
+     * resampled at fixed steps when read, so this stays cheap.
+     */
     public void add(long ts, Quaternion q) {
-        double q0 = ((MedianFilter<Double>) filters[0]).sample(q.getQ0());
-        double q1 = ((MedianFilter<Double>) filters[1]).sample(q.getQ1());
-        double q2 = ((MedianFilter<Double>) filters[2]).sample(q.getQ2());
-        double q3 = ((MedianFilter<Double>) filters[3]).sample(q.getQ3());
+        add(ts, q.getQ0(), q.getQ1(), q.getQ2(), q.getQ3());
+    }
 
-        // The last sample.
-        Sample n = new Sample(ts, new Quaternion(q0, q1, q2, q3));
+    /**
+     * Filters and records a sample, given by its components, without allocating.
+     *
+     * @see #add(long, Quaternion)
+     */
+    public void add(long ts, double w, double x, double y, double z) {
+        double q0 = filters[0].sample(w);
+        double q1 = filters[1].sample(x);
+        double q2 = filters[2].sample(y);
+        double q3 = filters[3].sample(z);
 
-        if (data.isEmpty())
-            // If it's the first sample, just stores.
-            data.add(n);
+        int size = data.size();
+        if ((size < 2) || interpolate)
+            // If it's one of the first samples or it'll be resampled later, just stores.
+            data.add(ts, q0, q1, q2, q3);
         else {
-            // Sets the value as the last sample.
-            if (data.size() == 1)
-                data.add(n);
-            else {
-                Sample n_1 = data.get(data.size() - 1);
-                Sample n_2 = data.get(data.size() - 2);
-                double dt = n_1.getTimestamp() - n_2.getTimestamp();
-                if (dt >= step) {
-                    if (!this.interpolate)
-                        data.add(n);
-                    else {
-                        while (dt >= step) {
-                            n_2 = new Sample(
-                                    n_2.getTimestamp() + step,
-                                    interpolate(n_2.getQuaternion(), n_1.getQuaternion(), step / dt)
-                            );
-                            data.add(data.size() - 1, n_2);
-                            dt = n_1.getTimestamp() - n_2.getTimestamp();
-                        }
-                        data.set(data.size() - 1, n);
-                    }
-                } else
-                    data.set(data.size() - 1, n);
-            }
+            int last = size - 1;
+            if (data.getTimestamp(last) - data.getTimestamp(last - 1) >= step)
+                data.add(ts, q0, q1, q2, q3);
+            else
+                // Sets the value as the last sample.
+                data.set(last, ts, q0, q1, q2, q3);
         }
     }
 
-    public List<Sample> getData() {
+    /**
+     * @return How many samples of the recorded curve won't change anymore.
+     */
+    public int getFinalSize() {
+        if (finished)
+            return data.size();
+        if (interpolate)
+            return Resampler.size(data, step);
+        // The last sample may still be replaced.
+        return Math.max(data.size() - 1, 0);
+    }
+
+    /**
+     * Copies a range of the recorded curve, resampling it if necessary.
+     *
+     * @param from The position of the first sample to copy, inclusive.
+     * @param to   The position of the last sample to copy, exclusive.
+     * @return A new store, holding only the copied samples.
+     * @throws IndexOutOfBoundsException If the range is not within the curve.
+     */
+    public ChunkedSampleStore copy(int from, int to) {
+        if (finished || !interpolate)
+            return ChunkedSampleStore.copyOf(data, from, to);
+        ChunkedSampleStore copy = new ChunkedSampleStore();
+        Resampler.resample(data, step, from, to, copy);
+        return copy;
+    }
+
+    /**
+     * Ends the recording, moving the curve into its final store, which replaces the current one from then on.
+     * If interpolating, the curve is resampled once on the way.
+     *
+     * @param target Where to store the final curve, possibly the current store itself if not interpolating.
+     * @return The store that now holds the recorded curve.
+     */
+    public SampleStore finish(SampleStore target) {
+        if (!finished && (target != data)) {
+            if (interpolate)
+                Resampler.resample(data, step, target);
+            else
+                for (int i = 0; i < data.size(); ++i)
+                    target.add(data.getTimestamp(i), data.getW(i), data.getX(i), data.getY(i), data.getZ(i));
+            data = target;
+        }
+        finished = true;
         return data;
     }
+
+    /**
+     * @return The storage of the recorded curve, as recorded until it's finished.
+     */
+    public SampleStore getStore() {
+        return data;
+    }
+
+    /**
+     * @return A read-only view of the recorded curve, backed by the recorder's storage, or a resampled copy,
+     * if interpolating and not finished yet.
+     */
+    public List<Sample> getData() {
+        if (finished || !interpolate)
+            return data.asList();
+        return copy(0, Resampler.size(data, step)).asList();
+    }
 }
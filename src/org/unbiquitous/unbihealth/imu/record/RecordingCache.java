@@ -0,0 +1,227 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps finished recordings, by record id, in least recently used order, so they can be fetched after
+ * being stopped.
+ * <p>
+ * Recordings expire a fixed time after they were stopped. To free memory, the least recently used ones can
+ * be evicted: either dropped or, if a spill directory is given, saved there as {@link CompressedSampleStore}
+ * files and loaded back when fetched again. Recordings that don't take heap, like memory-mapped ones, are
+ * never evicted, only expired.
+ * <p>
+ * Dropping a {@link MappedSampleStore} only unmaps it: its file was handed out to clients, so it's theirs to
+ * delete. Unless, if enabled, the cache deletes it along with the recording.
+ */
+public final class RecordingCache {
+    /**
+     * The extension of spilled recording files.
+     */
+    public static final String SPILL_FILE_EXTENSION = ".imuc";
+
+    private final long ttl;
+    private final Path spillDir;
+    private final boolean deleteMapped;
+    private final LinkedHashMap<String, Recording> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsage = 0;
+
+    /**
+     * @param ttl      How long, in milliseconds, to keep a finished recording; zero means forever.
+     * @param spillDir Where to save evicted recordings or null to drop them.
+     */
+    public RecordingCache(long ttl, Path spillDir) {
+        this(ttl, spillDir, false);
+    }
+
+    /**
+     * @param ttl          How long, in milliseconds, to keep a finished recording; zero means forever.
+     * @param spillDir     Where to save evicted recordings or null to drop them.
+     * @param deleteMapped Whether to delete the files of memory-mapped recordings when they're dropped.
+     */
+    public RecordingCache(long ttl, Path spillDir, boolean deleteMapped) {
+        if (ttl < 0)
+            throw new IllegalArgumentException("negative ttl");
+        this.ttl = ttl;
+        this.spillDir = spillDir;
+        this.deleteMapped = deleteMapped;
+    }
+
+    /**
+     * Adds a finished recording, making it the most recently used one.
+     *
+     * @param sensorId The recorded sensor's id.
+     * @param recordId The recording's id.
+     * @param store    The recorded curve, which won't change anymore.
+     */
+    public synchronized void put(String sensorId, String recordId, SampleStore store) {
+        Recording entry = new Recording(sensorId, System.currentTimeMillis(), store);
+        memoryUsage += entry.memoryUsage;
+        remove(entries.put(recordId, entry));
+    }
+
+    /**
+     * Retrieves a finished recording, loading it back into memory if it was spilled, and makes it the most
+     * recently used one.
+     *
+     * @param sensorId The recorded sensor's id.
+     * @param recordId The recording's id.
+     * @return The recorded curve or null if there's no such recording of the given sensor.
+     * @throws IOException If the recording was spilled and can't be loaded.
+     */
+    public SampleStore get(String sensorId, String recordId) throws IOException {
+        Recording entry;
+        synchronized (this) {
+            entry = entries.get(recordId);
+            if ((entry == null) || !entry.sensorId.equals(sensorId))
+                return null;
+            if (entry.store != null)
+                return entry.store;
+        }
+
+        // Loads the spilled file without holding the lock.
+        CompressedSampleStore store = CompressedSampleStore.load(entry.spillFile);
+        synchronized (this) {
+            if (entries.get(recordId) != entry)
+                return store;
+            if (entry.store == null) {
+                entry.store = store;
+                entry.memoryUsage = store.getMemoryUsage();
+                memoryUsage += entry.memoryUsage;
+            }
+            return entry.store;
+        }
+    }
+
+    /**
+     * @return How much heap the cached recordings take, in bytes.
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * @return How many recordings are cached, either in memory or spilled.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Frees the memory of the least recently used recording that takes any, spilling it if enabled.
+     *
+     * @return False if no recording takes any memory.
+     * @throws IOException If the recording can't be spilled. It's dropped anyway.
+     */
+    public synchronized boolean evict() throws IOException {
+        Iterator<Map.Entry<String, Recording>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Recording> e = it.next();
+            Recording entry = e.getValue();
+            if ((entry.store == null) || (entry.memoryUsage == 0))
+                continue;
+
+            memoryUsage -= entry.memoryUsage;
+            entry.memoryUsage = 0;
+            SampleStore store = entry.store;
+            entry.store = null;
+            if (entry.spillFile == null) {
+                if (spillDir == null) {
+                    it.remove();
+                    return true;
+                }
+                try {
+                    Files.createDirectories(spillDir);
+                    Path file = spillDir.resolve(entry.sensorId + "-" + e.getKey() + SPILL_FILE_EXTENSION);
+                    (store instanceof CompressedSampleStore ?
+                            (CompressedSampleStore) store :
+                            CompressedSampleStore.copyOf(store)).save(file);
+                    entry.spillFile = file;
+                } catch (IOException | RuntimeException ex) {
+                    it.remove();
+                    throw ex;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the recordings that were stopped longer than the time to live ago, deleting their spilled files
+     * and, if enabled, their mapped files.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     * @return How many recordings were removed.
+     */
+    public synchronized int expire(long now) {
+        if (ttl == 0)
+            return 0;
+        int expired = 0;
+        Iterator<Recording> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Recording entry = it.next();
+            if (now - entry.finishTime >= ttl) {
+                it.remove();
+                remove(entry);
+                ++expired;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Removes every recording, deleting their spilled files and, if enabled, their mapped files.
+     */
+    public synchronized void clear() {
+        for (Recording entry : entries.values())
+            remove(entry);
+        entries.clear();
+    }
+
+    private void remove(Recording entry) {
+        if (entry == null)
+            return;
+        memoryUsage -= entry.memoryUsage;
+        if (entry.store instanceof Closeable) {
+            try {
+                ((Closeable) entry.store).close();
+            } catch (IOException e) {
+                // Nothing else to do, it's going away.
+            }
+        }
+        if (deleteMapped && (entry.store instanceof MappedSampleStore))
+            delete(((MappedSampleStore) entry.store).getPath());
+        if (entry.spillFile != null)
+            delete(entry.spillFile);
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left behind, nothing else to do.
+        }
+    }
+
+    private static final class Recording {
+        final String sensorId;
+        final long finishTime;
+        SampleStore store;
+        long memoryUsage;
+        Path spillFile;
+
+        Recording(String sensorId, long finishTime, SampleStore store) {
+            this.sensorId = sensorId;
+            this.finishTime = finishTime;
+            this.store = store;
+            this.memoryUsage = store.getMemoryUsage();
+        }
+    }
+}
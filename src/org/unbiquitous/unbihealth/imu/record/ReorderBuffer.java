@@ -0,0 +1,144 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+/**
+ * A jitter buffer that puts samples back in timestamp order, holding each one until a newer sample shows the
+ * reorder window is over. It's a fixed-size circular buffer in columns of primitive arrays, kept sorted by
+ * insertion from the newest end, so it never allocates and samples that arrive in order cost no more than an
+ * append.
+ * <p>
+ * Samples are addressed from the oldest (0) to the newest ({@link #size()} - 1). Once released with
+ * {@link #remove(int)}, no sample older than the last released one can be added anymore: it's late.
+ */
+public final class ReorderBuffer {
+    private final long[] timestamps;
+    private final double[] w, x, y, z;
+    private final long window;
+    private int head = 0, size = 0;
+    private long newest = Long.MIN_VALUE;
+    private long released = Long.MIN_VALUE;
+
+    /**
+     * @param capacity How many samples the buffer holds, at least 2.
+     * @param window   How long, in timestamp milliseconds, a sample is held waiting for older ones.
+     * @throws IllegalArgumentException If capacity is less than 2 or the window is negative.
+     */
+    public ReorderBuffer(int capacity, long window) {
+        if (capacity < 2)
+            throw new IllegalArgumentException("capacity less than 2");
+        if (window < 0)
+            throw new IllegalArgumentException("negative window");
+        timestamps = new long[capacity];
+        w = new double[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        this.window = window;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Inserts a sample in timestamp order, after any other with the same timestamp.
+     *
+     * @return False if the sample is late, older than the last released one, and was discarded.
+     * @throws IllegalStateException If the buffer is full.
+     */
+    public boolean add(long timestamp, double w, double x, double y, double z) {
+        if (timestamp < released)
+            return false;
+        if (size == timestamps.length)
+            throw new IllegalStateException("reorder buffer full");
+        int index = size++;
+        int i = physical(index);
+        for (; (index > 0) && (timestamps[physical(index - 1)] > timestamp); --index) {
+            int previous = physical(index - 1);
+            timestamps[i] = timestamps[previous];
+            this.w[i] = this.w[previous];
+            this.x[i] = this.x[previous];
+            this.y[i] = this.y[previous];
+            this.z[i] = this.z[previous];
+            i = previous;
+        }
+        timestamps[i] = timestamp;
+        this.w[i] = w;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.z[i] = z;
+        newest = Math.max(newest, timestamp);
+        return true;
+    }
+
+    /**
+     * Tells how many of the oldest samples may be released: those at least a window older than the newest
+     * sample, plus as many as needed to leave room for the next one.
+     *
+     * @param all Whether to release every sample, regardless of the window.
+     * @return How many samples, from the oldest, to release.
+     */
+    public int due(boolean all) {
+        if (all)
+            return size;
+        long limit = newest - window;
+        int count = Math.max(0, size - timestamps.length + 1);
+        while ((count < size) && (timestamps[physical(count)] <= limit))
+            ++count;
+        return count;
+    }
+
+    /**
+     * Releases the oldest samples. Samples older than the last one released are late from now on.
+     *
+     * @param count How many samples to release.
+     * @throws IndexOutOfBoundsException If there aren't as many samples.
+     */
+    public void remove(int count) {
+        if ((count < 0) || (count > size))
+            throw new IndexOutOfBoundsException("Count: " + count + ", Size: " + size);
+        if (count == 0)
+            return;
+        released = timestamps[physical(count - 1)];
+        head = physical(count);
+        size -= count;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[physical(check(index))];
+    }
+
+    public double getW(int index) {
+        return w[physical(check(index))];
+    }
+
+    public double getX(int index) {
+        return x[physical(check(index))];
+    }
+
+    public double getY(int index) {
+        return y[physical(check(index))];
+    }
+
+    public double getZ(int index) {
+        return z[physical(check(index))];
+    }
+
+    private int physical(int index) {
+        int i = head + index;
+        return i < timestamps.length ? i : i - timestamps.length;
+    }
+
+    private int check(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return index;
+    }
+}
@@ -0,0 +1,98 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import static org.unbiquitous.unbihealth.imu.util.QuaternionUtils.nlerp;
+import static org.unbiquitous.unbihealth.imu.util.QuaternionUtils.slerp;
+
+/**
+ * Resamples a curve at fixed time steps, starting from its first sample, by spherically interpolating
+ * the two samples around each step. Points at or past the last sample repeat it. Either way, resampled
+ * points are normalized.
+ * <p>
+ * Resampling a range takes a binary search to find its start and then a single linear pass over the
+ * source, with no allocations other than the target's own storage. Since each resampled point only
+ * depends on the two source samples around it, appending to the source never changes points already
+ * resampled.
+ */
+public final class Resampler {
+    private Resampler() {
+    }
+
+    /**
+     * @param source The curve to resample, in ascending timestamp order.
+     * @param step   The time step, must be positive.
+     * @return How many points the resampled curve has.
+     */
+    public static int size(SampleStore source, int step) {
+        int n = source.size();
+        if (n == 0)
+            return 0;
+        long span = source.getTimestamp(n - 1) - source.getTimestamp(0);
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(span, 0) / step + 1);
+    }
+
+    /**
+     * Resamples the whole curve.
+     *
+     * @param source The curve to resample, in ascending timestamp order.
+     * @param step   The time step, must be positive.
+     * @param target Where to append the resampled points.
+     */
+    public static void resample(SampleStore source, int step, SampleStore target) {
+        resample(source, step, 0, size(source, step), target);
+    }
+
+    /**
+     * Resamples a range of the curve.
+     *
+     * @param source The curve to resample, in ascending timestamp order.
+     * @param step   The time step, must be positive.
+     * @param from   The position of the first resampled point, inclusive.
+     * @param to     The position of the last resampled point, exclusive.
+     * @param target Where to append the resampled points.
+     * @throws IndexOutOfBoundsException If the range is not within the resampled curve.
+     */
+    public static void resample(SampleStore source, int step, int from, int to, SampleStore target) {
+        if ((from < 0) || (to > size(source, step)) || (from > to))
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to);
+        if (from == to)
+            return;
+
+        double[] q = new double[4];
+        long start = source.getTimestamp(0);
+        int last = source.size() - 1;
+        int j = floor(source, start + (long) from * step);
+        for (int i = from; i < to; ++i) {
+            long t = start + (long) i * step;
+            while ((j < last) && (source.getTimestamp(j + 1) <= t))
+                ++j;
+            if (j == last) {
+                // Interpolating the sample with itself normalizes it, like the interpolated points.
+                nlerp(source.getW(j), source.getX(j), source.getY(j), source.getZ(j),
+                        source.getW(j), source.getX(j), source.getY(j), source.getZ(j), 0, q);
+                target.add(t, q[0], q[1], q[2], q[3]);
+                continue;
+            }
+
+            long t1 = source.getTimestamp(j), t2 = source.getTimestamp(j + 1);
+            double u = t2 > t1 ? (double) (t - t1) / (t2 - t1) : 1;
+            slerp(source.getW(j), source.getX(j), source.getY(j), source.getZ(j),
+                    source.getW(j + 1), source.getX(j + 1), source.getY(j + 1), source.getZ(j + 1), u, q);
+            target.add(t, q[0], q[1], q[2], q[3]);
+        }
+    }
+
+    /**
+     * @return The position of the last sample whose timestamp is not after t, or 0 if there's none.
+     */
+    private static int floor(SampleStore source, long t) {
+        int lo = 0, hi = source.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (source.getTimestamp(mid) <= t)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,150 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import java.util.Arrays;
+
+/**
+ * Stores a curve of samples in flat primitive arrays, one per column, which can be handed directly to
+ * numeric post-processing code. Arrays double in size as samples are appended.
+ */
+public final class SampleArrays implements SampleStore {
+    private long[] timestamps;
+    private double[] w, x, y, z;
+    private int size = 0;
+
+    public SampleArrays() {
+        this(256);
+    }
+
+    /**
+     * @param capacity The initial capacity.
+     */
+    public SampleArrays(int capacity) {
+        timestamps = new long[capacity];
+        w = new double[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(long timestamp, double w, double x, double y, double z) {
+        if (size == timestamps.length)
+            resize(Math.max(16, size * 2));
+        write(size++, timestamp, w, x, y, z);
+    }
+
+    @Override
+    public void set(int index, long timestamp, double w, double x, double y, double z) {
+        check(index);
+        write(index, timestamp, w, x, y, z);
+    }
+
+    @Override
+    public long getTimestamp(int index) {
+        check(index);
+        return timestamps[index];
+    }
+
+    @Override
+    public double getW(int index) {
+        check(index);
+        return w[index];
+    }
+
+    @Override
+    public double getX(int index) {
+        check(index);
+        return x[index];
+    }
+
+    @Override
+    public double getY(int index) {
+        check(index);
+        return y[index];
+    }
+
+    @Override
+    public double getZ(int index) {
+        check(index);
+        return z[index];
+    }
+
+    /**
+     * @return The timestamps column, trimmed to {@link #size()}. Changes to it are reflected in this store.
+     */
+    public long[] timestamps() {
+        trim();
+        return timestamps;
+    }
+
+    /**
+     * @return The w column, trimmed to {@link #size()}. Changes to it are reflected in this store.
+     */
+    public double[] w() {
+        trim();
+        return w;
+    }
+
+    /**
+     * @return The x column, trimmed to {@link #size()}. Changes to it are reflected in this store.
+     */
+    public double[] x() {
+        trim();
+        return x;
+    }
+
+    /**
+     * @return The y column, trimmed to {@link #size()}. Changes to it are reflected in this store.
+     */
+    public double[] y() {
+        trim();
+        return y;
+    }
+
+    /**
+     * @return The z column, trimmed to {@link #size()}. Changes to it are reflected in this store.
+     */
+    public double[] z() {
+        trim();
+        return z;
+    }
+
+    /**
+     * @return The size of the allocated arrays, in bytes.
+     */
+    @Override
+    public long getMemoryUsage() {
+        return 40L * timestamps.length;
+    }
+
+    private void trim() {
+        if (size != timestamps.length)
+            resize(size);
+    }
+
+    private void resize(int capacity) {
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        w = Arrays.copyOf(w, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+    }
+
+    private void write(int index, long timestamp, double w, double x, double y, double z) {
+        timestamps[index] = timestamp;
+        this.w[index] = w;
+        this.x[index] = x;
+        this.y[index] = y;
+        this.z[index] = z;
+    }
+
+    private void check(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
@@ -0,0 +1,33 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list view of a {@link SampleStore}. It's serialized straight from the store.
+ */
+@JsonSerialize(using = SampleListSerializer.class)
+final class SampleList extends AbstractList<Sample> implements RandomAccess {
+    private final SampleStore store;
+
+    SampleList(SampleStore store) {
+        this.store = store;
+    }
+
+    SampleStore getStore() {
+        return store;
+    }
+
+    @Override
+    public Sample get(int index) {
+        return store.get(index);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+}
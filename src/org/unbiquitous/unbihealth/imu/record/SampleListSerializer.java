@@ -0,0 +1,19 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import org.unbiquitous.unbihealth.imu.util.SampleJson;
+
+import java.io.IOException;
+
+/**
+ * Serializes a {@link SampleList} straight from its store, without creating any sample.
+ */
+final class SampleListSerializer extends JsonSerializer<SampleList> {
+    @Override
+    public void serialize(SampleList list, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        SampleStore store = list.getStore();
+        SampleJson.writeSamples(gen, store, 0, store.size());
+    }
+}
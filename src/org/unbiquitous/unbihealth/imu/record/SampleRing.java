@@ -0,0 +1,126 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+/**
+ * A fixed-size circular buffer of samples, in columns of primitive arrays. Once full, each new sample
+ * replaces the oldest one, so appending never allocates.
+ * <p>
+ * Samples are addressed from the oldest (0) to the newest ({@link #size()} - 1) and are expected to arrive
+ * in ascending timestamp order, which allows searching them by time.
+ */
+public final class SampleRing {
+    private final long[] timestamps;
+    private final double[] w, x, y, z;
+    private int head = 0, size = 0;
+
+    /**
+     * @param capacity How many samples the buffer holds.
+     * @throws IllegalArgumentException If capacity is not positive.
+     */
+    public SampleRing(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("non-positive capacity");
+        timestamps = new long[capacity];
+        w = new double[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a sample, replacing the oldest one if full.
+     */
+    public void add(long timestamp, double w, double x, double y, double z) {
+        int i;
+        if (size < timestamps.length)
+            i = physical(size++);
+        else {
+            i = head;
+            head = physical(1);
+        }
+        timestamps[i] = timestamp;
+        this.w[i] = w;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.z[i] = z;
+    }
+
+    /**
+     * Discards every sample.
+     */
+    public void clear() {
+        head = size = 0;
+    }
+
+    /**
+     * @param timestamp The timestamp to search for.
+     * @return The position of the oldest sample not before the given timestamp, or {@link #size()} if
+     * there's none.
+     */
+    public int indexOf(long timestamp) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[physical(mid)] < timestamp)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[physical(check(index))];
+    }
+
+    public double getW(int index) {
+        return w[physical(check(index))];
+    }
+
+    public double getX(int index) {
+        return x[physical(check(index))];
+    }
+
+    public double getY(int index) {
+        return y[physical(check(index))];
+    }
+
+    public double getZ(int index) {
+        return z[physical(check(index))];
+    }
+
+    /**
+     * Appends a range of samples to another store.
+     *
+     * @param from   The position of the first sample to copy, inclusive.
+     * @param to     The position of the last sample to copy, exclusive.
+     * @param target Where to append the samples.
+     * @throws IndexOutOfBoundsException If the range is not within the buffer.
+     */
+    public void copyTo(int from, int to, SampleStore target) {
+        if ((from < 0) || (to > size) || (from > to))
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", size: " + size);
+        for (int index = from; index < to; ++index) {
+            int i = physical(index);
+            target.add(timestamps[i], w[i], x[i], y[i], z[i]);
+        }
+    }
+
+    private int physical(int index) {
+        int i = head + index;
+        return i < timestamps.length ? i : i - timestamps.length;
+    }
+
+    private int check(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return index;
+    }
+}
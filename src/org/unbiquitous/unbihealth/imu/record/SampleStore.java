@@ -0,0 +1,67 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.util.List;
+
+/**
+ * Storage for a recorded curve, accessed by sample position and component, so implementations are
+ * free to keep the data in whatever layout suits them.
+ */
+public interface SampleStore {
+    /**
+     * @return The number of stored samples.
+     */
+    int size();
+
+    /**
+     * Appends a sample to the end of the curve.
+     */
+    void add(long timestamp, double w, double x, double y, double z);
+
+    /**
+     * Replaces the sample at the given position.
+     *
+     * @throws IndexOutOfBoundsException If there's no such sample.
+     */
+    void set(int index, long timestamp, double w, double x, double y, double z);
+
+    long getTimestamp(int index);
+
+    double getW(int index);
+
+    double getX(int index);
+
+    double getY(int index);
+
+    double getZ(int index);
+
+    /**
+     * Estimates how much heap the stored data takes, for memory budgeting. By default, 40 bytes per sample.
+     *
+     * @return The estimated number of bytes.
+     */
+    default long getMemoryUsage() {
+        return 40L * size();
+    }
+
+    /**
+     * Builds a new {@link Sample} with the data at the given position.
+     *
+     * @throws IndexOutOfBoundsException If there's no such sample.
+     */
+    default Sample get(int index) {
+        return new Sample(getTimestamp(index), new Quaternion(getW(index), getX(index), getY(index), getZ(index)));
+    }
+
+    /**
+     * Returns a read-only list view of this store. The view reflects later changes to the store and
+     * creates a new {@link Sample} on every access.
+     *
+     * @return The list view.
+     */
+    default List<Sample> asList() {
+        return new SampleList(this);
+    }
+}
@@ -0,0 +1,67 @@
+package org.unbiquitous.unbihealth.imu.replay;
+
+/**
+ * What a {@link Replayer} run achieved.
+ */
+public final class ReplayResult {
+    private final long samples;
+    private final long duration;
+    private final long elapsedNanos;
+    private final long maxLagNanos;
+
+    ReplayResult(long samples, long duration, long elapsedNanos, long maxLagNanos) {
+        this.samples = samples;
+        this.duration = duration;
+        this.elapsedNanos = elapsedNanos;
+        this.maxLagNanos = maxLagNanos;
+    }
+
+    /**
+     * @return How many samples were handed over to the driver.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return The time span of the replayed recordings, by their timestamps, in milliseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return How long the replay took, in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return How far behind its schedule a sample was handed over, at most, in nanoseconds. Always zero when
+     * replaying as fast as possible.
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    /**
+     * @return The achieved throughput, in samples per second.
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : samples * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return The achieved multiple of real time.
+     */
+    public double getSpeed() {
+        return elapsedNanos == 0 ? 0 : duration * 1e6 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d samples in %.3f ms: %.0f samples/s, %.2fx real time, max lag %.3f ms",
+                samples, elapsedNanos / 1e6, getThroughput(), getSpeed(), maxLagNanos / 1e6);
+    }
+}
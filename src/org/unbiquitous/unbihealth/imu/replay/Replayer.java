@@ -0,0 +1,233 @@
+package org.unbiquitous.unbihealth.imu.replay;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.Sample;
+import org.unbiquitous.unbihealth.imu.record.SampleStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams recorded sessions back through a driver's whole ingest pipeline: throttling, tare, history,
+ * recording and notification, as if the samples were arriving from the sensors again.
+ * <p>
+ * Each recording is replayed to a sensor by its own thread, like a live sensor, through the bulk
+ * {@link IMUDriver#sensorChanged(int, long[], double[], double[], double[], double[], int, int)}. Recordings
+ * keep their relative timing, also across sensors: a sample is handed over once the time elapsed since the
+ * start of the replay, multiplied by the speed, reaches its timestamp's offset from the earliest timestamp of
+ * every recording. Samples that are due together, because the replay fell behind, go in a single burst. At
+ * {@link #MAX_SPEED}, samples go in bursts of {@value #MAX_BURST} as fast as the driver takes them.
+ * <p>
+ * A replayer may be run several times, but not concurrently.
+ */
+public final class Replayer {
+    /**
+     * The speed that replays as fast as possible.
+     */
+    public static final double MAX_SPEED = 0;
+    /**
+     * The maximum number of samples handed over to the driver at once.
+     */
+    public static final int MAX_BURST = 64;
+
+    private final IMUDriver driver;
+    private final List<Track> tracks = new ArrayList<>();
+
+    /**
+     * @param driver The driver to replay to, already initialized.
+     */
+    public Replayer(IMUDriver driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * Adds a recording, as returned by {@link IMUDriver#extractRecordedData}, to be replayed.
+     *
+     * @param sensorId The id of the sensor to replay the samples to.
+     * @param samples  The samples, in ascending timestamp order.
+     * @return This replayer.
+     * @throws IllegalArgumentException If the sensor id is not valid.
+     */
+    public Replayer add(String sensorId, List<Sample> samples) {
+        Track track = new Track(driver.getSensorHandle(sensorId), samples.size());
+        for (int i = 0; i < track.size; ++i) {
+            Sample s = samples.get(i);
+            Quaternion q = s.getQuaternion();
+            track.set(i, s.getTimestamp(), q.getQ0(), q.getQ1(), q.getQ2(), q.getQ3());
+        }
+        tracks.add(track);
+        return this;
+    }
+
+    /**
+     * Adds a recorded curve to be replayed.
+     *
+     * @param sensorId The id of the sensor to replay the samples to.
+     * @param samples  The samples, in ascending timestamp order.
+     * @return This replayer.
+     * @throws IllegalArgumentException If the sensor id is not valid.
+     */
+    public Replayer add(String sensorId, SampleStore samples) {
+        Track track = new Track(driver.getSensorHandle(sensorId), samples.size());
+        for (int i = 0; i < track.size; ++i)
+            track.set(i, samples.getTimestamp(i), samples.getW(i), samples.getX(i), samples.getY(i), samples.getZ(i));
+        tracks.add(track);
+        return this;
+    }
+
+    /**
+     * Replays every recording with timestamps shifted to the current time, so the driver sees fresh samples.
+     *
+     * @param speed The multiple of real time to replay at, or {@link #MAX_SPEED}.
+     * @return What the replay achieved.
+     * @throws IOException          If the driver fails to take a sample.
+     * @throws InterruptedException If interrupted while waiting for the replay to finish.
+     * @see #run(double, boolean)
+     */
+    public ReplayResult run(double speed) throws IOException, InterruptedException {
+        return run(speed, true);
+    }
+
+    /**
+     * Replays every recording and waits for it to finish.
+     *
+     * @param speed  The multiple of real time to replay at, or {@link #MAX_SPEED}.
+     * @param rebase Whether to shift the timestamps so the earliest one becomes the current time.
+     * @return What the replay achieved.
+     * @throws IOException              If the driver fails to take a sample.
+     * @throws InterruptedException     If interrupted while waiting for the replay to finish. The replay is
+     *                                  stopped.
+     * @throws IllegalArgumentException If the speed is negative.
+     */
+    public ReplayResult run(double speed, boolean rebase) throws IOException, InterruptedException {
+        if (!(speed >= 0))
+            throw new IllegalArgumentException("negative speed");
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE, samples = 0;
+        for (Track track : tracks) {
+            if (track.size > 0) {
+                first = Math.min(first, track.timestamps[0]);
+                last = Math.max(last, track.timestamps[track.size - 1]);
+                samples += track.size;
+            }
+        }
+        if (samples == 0)
+            return new ReplayResult(0, 0, 0, 0);
+
+        long offset = rebase ? System.currentTimeMillis() - first : 0;
+        CountDownLatch ready = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>(tracks.size());
+        for (int t = 0; t < tracks.size(); ++t) {
+            Track track = tracks.get(t);
+            track.prepare(first, offset);
+            Thread worker = new Thread(() -> {
+                try {
+                    ready.await();
+                    track.replay(driver, speed);
+                } catch (InterruptedException e) {
+                    // Stopping.
+                } catch (IOException | RuntimeException e) {
+                    error.compareAndSet(null, e);
+                }
+            }, "imudriver-replay-" + t);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        long start = System.nanoTime();
+        for (Track track : tracks)
+            track.start = start;
+        ready.countDown();
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            for (Thread worker : workers)
+                worker.interrupt();
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Throwable e = error.get();
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e != null)
+            throw (RuntimeException) e;
+        long maxLag = 0;
+        for (Track track : tracks)
+            maxLag = Math.max(maxLag, track.maxLag);
+        return new ReplayResult(samples, last - first, elapsed, maxLag);
+    }
+
+    private static final class Track {
+        final int handle;
+        final int size;
+        final long[] timestamps;
+        final double[] w, x, y, z;
+        // The timestamps handed over to the driver, possibly shifted.
+        final long[] shifted;
+        // The earliest timestamp of every track and when the replay started, in nanoseconds.
+        long first, start;
+        long maxLag;
+
+        Track(int handle, int size) {
+            this.handle = handle;
+            this.size = size;
+            timestamps = new long[size];
+            shifted = new long[size];
+            w = new double[size];
+            x = new double[size];
+            y = new double[size];
+            z = new double[size];
+        }
+
+        void set(int i, long timestamp, double w, double x, double y, double z) {
+            timestamps[i] = timestamp;
+            this.w[i] = w;
+            this.x[i] = x;
+            this.y[i] = y;
+            this.z[i] = z;
+        }
+
+        void prepare(long first, long offset) {
+            this.first = first;
+            for (int i = 0; i < size; ++i)
+                shifted[i] = timestamps[i] + offset;
+            maxLag = 0;
+        }
+
+        void replay(IMUDriver driver, double speed) throws IOException, InterruptedException {
+            for (int i = 0; i < size; ) {
+                int end;
+                if (speed == MAX_SPEED)
+                    end = Math.min(size, i + MAX_BURST);
+                else {
+                    long late = System.nanoTime() - due(i, speed);
+                    if (late < 0) {
+                        LockSupport.parkNanos(-late);
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                        continue;
+                    }
+                    maxLag = Math.max(maxLag, late);
+                    long now = System.nanoTime();
+                    end = i + 1;
+                    while ((end < size) && (end - i < MAX_BURST) && (due(end, speed) <= now))
+                        ++end;
+                }
+                driver.sensorChanged(handle, shifted, w, x, y, z, i, end - i);
+                i = end;
+            }
+        }
+
+        private long due(int i, double speed) {
+            return start + (long) ((timestamps[i] - first) * 1e6 / speed);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.unbiquitous.unbihealth.imu.shm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for the plain accesses to a ring file, which is shared with other processes, so it's beyond
+ * the reach of the Java memory model. Uses {@code sun.misc.Unsafe}'s fences when available, looked up at run
+ * time; otherwise, falls back to a volatile write or read, which HotSpot backs with the same barriers.
+ */
+final class Fences {
+    private static final MethodHandle STORE_FENCE;
+    private static final MethodHandle LOAD_FENCE;
+    private static volatile int fallback;
+
+    static {
+        MethodHandle store = null, load = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            store = lookup.findVirtual(type, "storeFence", MethodType.methodType(void.class)).bindTo(unsafe);
+            load = lookup.findVirtual(type, "loadFence", MethodType.methodType(void.class)).bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            store = load = null;
+        }
+        STORE_FENCE = store;
+        LOAD_FENCE = load;
+    }
+
+    private Fences() {
+    }
+
+    /**
+     * Keeps the stores before the fence from being reordered with the stores after it.
+     */
+    static void storeFence() {
+        if (STORE_FENCE == null) {
+            fallback = 0;
+            return;
+        }
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Keeps the loads before the fence from being reordered with the loads after it.
+     */
+    static void loadFence() {
+        if (LOAD_FENCE == null) {
+            int ignored = fallback;
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
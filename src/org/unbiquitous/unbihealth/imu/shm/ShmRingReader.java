@@ -0,0 +1,208 @@
+package org.unbiquitous.unbihealth.imu.shm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.CAPACITY_OFFSET;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.CURSOR_OFFSET;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.HANDLE_OFFSET;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.IDS_LENGTH_OFFSET;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.IDS_OFFSET;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.MAGIC;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.MAX_IDS_LENGTH;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.SLOTS_OFFSET;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.SLOT_SIZE;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.TIMESTAMP_OFFSET;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.VERSION;
+import static org.unbiquitous.unbihealth.imu.shm.ShmRingWriter.W_OFFSET;
+
+/**
+ * Polls a ring file published by {@link ShmRingWriter}, reading samples straight from the shared mapping.
+ * Any number of readers, in any number of processes, may poll the same ring; each one has its own position
+ * and never slows down the writer or the other readers.
+ * <p>
+ * A reader starts at the ring's current end, so it only sees samples published after it was opened. If it
+ * falls more than a capacity behind, it skips the overwritten samples and counts them as lost.
+ * <p>
+ * Not thread-safe: each polling thread should open its own reader.
+ */
+public final class ShmRingReader implements Closeable {
+    /**
+     * Takes the polled samples.
+     */
+    public interface Handler {
+        /**
+         * @param handle    The sensor's handle, see {@link #getSensorId(int)}.
+         * @param timestamp The sample's timestamp, in milliseconds.
+         * @param w         The quaternion's real part.
+         * @param x         The quaternion's i component.
+         * @param y         The quaternion's j component.
+         * @param z         The quaternion's k component.
+         */
+        void onSample(int handle, long timestamp, double w, double x, double y, double z);
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private final String[] sensorIds;
+    private long position;
+    private long lost = 0;
+
+    private ShmRingReader(FileChannel channel, MappedByteBuffer buffer, int capacity, String[] sensorIds) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.mask = capacity - 1;
+        this.sensorIds = sensorIds;
+        this.position = buffer.getLong(CURSOR_OFFSET);
+    }
+
+    /**
+     * @param path The ring file.
+     * @return A reader positioned at the ring's current end.
+     * @throws IOException If the file can't be mapped or is not a ring file.
+     */
+    public static ShmRingReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < SLOTS_OFFSET)
+                throw new IOException("not a ring file: " + path);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION) || (buffer.getInt(8) != SLOT_SIZE) ||
+                    (Integer.bitCount(capacity) != 1) || (size != SLOTS_OFFSET + (long) capacity * SLOT_SIZE))
+                throw new IOException("not a ring file or unsupported version: " + path);
+            int idsLength = buffer.getInt(IDS_LENGTH_OFFSET);
+            if ((idsLength < 0) || (idsLength > MAX_IDS_LENGTH))
+                throw new IOException("corrupt ring file: " + path);
+            Fences.loadFence();
+            List<String> ids = new ArrayList<>();
+            for (int offset = 0; offset < idsLength; ) {
+                if (offset + 2 > idsLength)
+                    throw new IOException("corrupt ring file: " + path);
+                int length = buffer.getShort(IDS_OFFSET + offset) & 0xFFFF;
+                offset += 2;
+                if (offset + length > idsLength)
+                    throw new IOException("corrupt ring file: " + path);
+                byte[] id = new byte[length];
+                for (int i = 0; i < length; ++i)
+                    id[i] = buffer.get(IDS_OFFSET + offset + i);
+                offset += length;
+                ids.add(new String(id, StandardCharsets.UTF_8));
+            }
+            return new ShmRingReader(channel, buffer, capacity, ids.toArray(new String[ids.size()]));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the samples published since the last poll over to the handler, in order, without waiting.
+     *
+     * @param handler The handler.
+     * @param limit   The maximum number of samples to hand over.
+     * @return How many samples were handed over.
+     */
+    public int poll(Handler handler, int limit) {
+        int count = 0;
+        while (count < limit) {
+            long cursor = buffer.getLong(CURSOR_OFFSET);
+            Fences.loadFence();
+            if (cursor < position) {
+                // The writer started over with a new ring.
+                position = cursor;
+                return count;
+            }
+            if (cursor - position > mask + 1) {
+                lost += cursor - position - (mask + 1);
+                position = cursor - (mask + 1);
+            }
+            if (position == cursor)
+                return count;
+
+            int slot = SLOTS_OFFSET + (int) (position & mask) * SLOT_SIZE;
+            long expected = 2 * position + 2;
+            long version = buffer.getLong(slot);
+            Fences.loadFence();
+            if (version < expected)
+                return count;
+            if (version == expected) {
+                int handle = buffer.getInt(slot + HANDLE_OFFSET);
+                long timestamp = buffer.getLong(slot + TIMESTAMP_OFFSET);
+                double w = buffer.getDouble(slot + W_OFFSET);
+                double x = buffer.getDouble(slot + W_OFFSET + 8);
+                double y = buffer.getDouble(slot + W_OFFSET + 16);
+                double z = buffer.getDouble(slot + W_OFFSET + 24);
+                Fences.loadFence();
+                if (buffer.getLong(slot) == expected) {
+                    ++position;
+                    ++count;
+                    handler.onSample(handle, timestamp, w, x, y, z);
+                    continue;
+                }
+            }
+            // Overwritten while reading; the next round skips ahead.
+            ++lost;
+            ++position;
+        }
+        return count;
+    }
+
+    /**
+     * @return How many samples were published ahead of this reader's position.
+     */
+    public long getBacklog() {
+        long cursor = buffer.getLong(CURSOR_OFFSET);
+        return Math.max(0, Math.min(cursor - position, mask + 1));
+    }
+
+    /**
+     * @return How many samples were overwritten before this reader got to them.
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * @return The number of the next sample to read.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @param handle A sensor handle, as handed over to {@link Handler#onSample}.
+     * @return The sensor's id.
+     * @throws IllegalArgumentException If the handle is not in the ring's sensor id table.
+     */
+    public String getSensorId(int handle) {
+        if ((handle < 0) || (handle >= sensorIds.length))
+            throw new IllegalArgumentException("Invalid sensor handle.");
+        return sensorIds[handle];
+    }
+
+    /**
+     * @return The sensor ids, by handle.
+     */
+    public String[] getSensorIds() {
+        return sensorIds.clone();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
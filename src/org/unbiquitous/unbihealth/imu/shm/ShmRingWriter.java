@@ -0,0 +1,161 @@
+package org.unbiquitous.unbihealth.imu.shm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Publishes samples into a memory-mapped ring file, for processes on the same host to read with
+ * {@link ShmRingReader}, with no copies, serialization or messages in between.
+ * <p>
+ * The file is big-endian: a {@value #HEADER_SIZE}-byte header, holding the magic number {@value #MAGIC}, the
+ * format version, the slot size, the capacity and the length of the sensor id table; the write cursor (long),
+ * on a cache line of its own at {@value #CURSOR_OFFSET}, counting every sample ever published; the sensor ids,
+ * in handle order, each one as a short length and UTF-8 bytes, at {@value #IDS_OFFSET}; and, at
+ * {@value #SLOTS_OFFSET}, a
+ * power of two number of {@value #SLOT_SIZE}-byte slots. Sample {@code n} goes to slot
+ * {@code n % capacity}, which holds a version (long), the sensor handle (int), four unused bytes, the
+ * timestamp (long) and w, x, y and z (doubles).
+ * <p>
+ * Slots are guarded by a sequence lock: the version is {@code 2n + 1} while sample {@code n} is being written
+ * and {@code 2n + 2} once it's complete, so readers can tell a finished sample from a torn or overwritten one
+ * without ever blocking the writer. Readers that fall more than a capacity behind lose the oldest samples.
+ * <p>
+ * There is a single writer per file. Within a process, publishing is serialized, so any number of threads may
+ * publish. Reopening a ring file with the same capacity carries on from its cursor, so attached readers
+ * simply continue.
+ */
+public final class ShmRingWriter implements Closeable {
+    static final int MAGIC = 0x494D5352;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int CURSOR_OFFSET = 64;
+    static final int IDS_OFFSET = 128;
+    static final int MAX_IDS_LENGTH = 4096;
+    static final int SLOTS_OFFSET = IDS_OFFSET + MAX_IDS_LENGTH;
+    static final int SLOT_SIZE = 64;
+    static final int CAPACITY_OFFSET = 12;
+    static final int IDS_LENGTH_OFFSET = 16;
+    static final int HANDLE_OFFSET = 8;
+    static final int TIMESTAMP_OFFSET = 16;
+    static final int W_OFFSET = 24;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private long cursor;
+
+    private ShmRingWriter(FileChannel channel, MappedByteBuffer buffer, int capacity, long cursor) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.mask = capacity - 1;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Creates a ring file or reopens it, if it already holds a ring of the same capacity.
+     *
+     * @param path      The ring file.
+     * @param capacity  How many samples the ring holds, a power of two.
+     * @param sensorIds The sensor ids, by handle.
+     * @return The writer.
+     * @throws IOException              If the file can't be created or mapped.
+     * @throws IllegalArgumentException If the capacity is not a power of two or the ids don't fit the file.
+     */
+    public static ShmRingWriter create(Path path, int capacity, String[] sensorIds) throws IOException {
+        if ((Integer.bitCount(capacity) != 1) || (capacity > (Integer.MAX_VALUE - SLOTS_OFFSET) / SLOT_SIZE))
+            throw new IllegalArgumentException("capacity must be a power of two");
+        ByteBuffer ids = ByteBuffer.allocate(MAX_IDS_LENGTH);
+        try {
+            for (String sensorId : sensorIds) {
+                byte[] id = sensorId.getBytes(StandardCharsets.UTF_8);
+                ids.putShort((short) id.length).put(id);
+            }
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("sensor ids too long");
+        }
+        ids.flip();
+
+        int size = SLOTS_OFFSET + capacity * SLOT_SIZE;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long cursor = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            boolean reuse = (channel.size() == size) && (channel.read(header, 0) == HEADER_SIZE) &&
+                    (header.getInt(0) == MAGIC) && (header.getInt(4) == VERSION) &&
+                    (header.getInt(8) == SLOT_SIZE) && (header.getInt(CAPACITY_OFFSET) == capacity);
+            if (!reuse)
+                channel.truncate(0);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (reuse)
+                cursor = buffer.getLong(CURSOR_OFFSET);
+            else {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, SLOT_SIZE);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putLong(CURSOR_OFFSET, 0);
+            }
+            for (int i = 0; i < ids.limit(); ++i)
+                buffer.put(IDS_OFFSET + i, ids.get(i));
+            Fences.storeFence();
+            buffer.putInt(IDS_LENGTH_OFFSET, ids.limit());
+            return new ShmRingWriter(channel, buffer, capacity, cursor);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes a sample, overwriting the oldest one if the ring is full.
+     *
+     * @param handle    The sensor's handle.
+     * @param timestamp The sample's timestamp, in milliseconds.
+     * @param w         The quaternion's real part.
+     * @param x         The quaternion's i component.
+     * @param y         The quaternion's j component.
+     * @param z         The quaternion's k component.
+     */
+    public synchronized void publish(int handle, long timestamp, double w, double x, double y, double z) {
+        long n = cursor++;
+        int slot = SLOTS_OFFSET + (int) (n & mask) * SLOT_SIZE;
+        buffer.putLong(slot, 2 * n + 1);
+        Fences.storeFence();
+        buffer.putInt(slot + HANDLE_OFFSET, handle);
+        buffer.putLong(slot + TIMESTAMP_OFFSET, timestamp);
+        buffer.putDouble(slot + W_OFFSET, w);
+        buffer.putDouble(slot + W_OFFSET + 8, x);
+        buffer.putDouble(slot + W_OFFSET + 16, y);
+        buffer.putDouble(slot + W_OFFSET + 24, z);
+        Fences.storeFence();
+        buffer.putLong(slot, 2 * n + 2);
+        buffer.putLong(CURSOR_OFFSET, cursor);
+    }
+
+    /**
+     * @return How many samples were ever published to the ring.
+     */
+    public synchronized long getPublished() {
+        return cursor;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Closes the file. The ring is left in place, for readers to drain.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,39 @@
+package org.unbiquitous.unbihealth.imu.stats;
+
+import java.util.List;
+
+/**
+ * The runtime statistics of an {@link org.unbiquitous.unbihealth.imu.IMUDriver} instance, as exposed
+ * through JMX.
+ */
+public interface IMUDriverStatsMXBean {
+    /**
+     * @return The statistics of every sensor.
+     */
+    List<SensorSnapshot> getSensors();
+
+    /**
+     * @return The statistics of every listener, including the default notification target.
+     */
+    List<ListenerSnapshot> getListeners();
+
+    /**
+     * @return How many samples were discarded by the dispatcher's ring buffer.
+     */
+    long getDispatchDropped();
+
+    /**
+     * @return How many samples are waiting in the dispatcher's ring buffer.
+     */
+    int getDispatchQueued();
+
+    /**
+     * @return How much heap the active and finished recordings take, in bytes.
+     */
+    long getRecordingMemory();
+
+    /**
+     * @return How many finished recordings are kept for fetching, either in memory or spilled.
+     */
+    int getCachedRecordings();
+}
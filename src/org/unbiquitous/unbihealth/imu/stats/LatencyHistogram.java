@@ -0,0 +1,96 @@
+package org.unbiquitous.unbihealth.imu.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, with one bucket per power of two nanoseconds.
+ * <p>
+ * Recording a value is a handful of atomic increments and never allocates, so it's cheap enough for
+ * every notification. Percentiles are reported as the upper bound of the bucket they fall into, so they
+ * may overestimate the real value by up to a factor of two; the mean and the maximum are exact.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration, in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * @return How many durations were recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The mean duration, in microseconds, or zero if nothing was recorded.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / (n * 1000.0);
+    }
+
+    /**
+     * @return The longest duration, in microseconds.
+     */
+    public long getMax() {
+        return TimeUnit.NANOSECONDS.toMicros(max.get());
+    }
+
+    /**
+     * Estimates a percentile of the recorded durations. The counts are read without stopping writers,
+     * so the result may be slightly off while durations are being recorded.
+     *
+     * @param p The percentile, in [0, 1].
+     * @return The upper bound of the bucket holding the percentile, in microseconds, or zero if nothing
+     * was recorded.
+     * @throws IllegalArgumentException If the percentile is out of range.
+     */
+    public long getPercentile(double p) {
+        if ((p < 0) || (p > 1))
+            throw new IllegalArgumentException("percentile out of range");
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+            n += counts[i] = buckets.get(i);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        for (int i = 0; i < BUCKETS; ++i) {
+            rank -= counts[i];
+            if (rank <= 0)
+                return TimeUnit.NANOSECONDS.toMicros(Math.min(upperBound(i), max.get()));
+        }
+        return getMax();
+    }
+
+    /**
+     * Bucket 0 holds zero and bucket i holds [2^(i-1), 2^i - 1].
+     */
+    private static int bucket(long nanos) {
+        return BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,126 @@
+package org.unbiquitous.unbihealth.imu.stats;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The statistics of a single listener at a given moment. Latencies are in microseconds.
+ */
+public final class ListenerSnapshot {
+    private final String device;
+    private final String eventKey;
+    private final long sent;
+    private final long samples;
+    private final long failed;
+    private final long filtered;
+    private final long dropped;
+    private final int queued;
+    private final double meanLatency;
+    private final long p50Latency;
+    private final long p99Latency;
+    private final long p999Latency;
+    private final long maxLatency;
+
+    /**
+     * @param device      The listener's device name.
+     * @param eventKey    The event the listener registered for.
+     * @param sent        How many notifications were sent.
+     * @param samples     How many samples the sent notifications carried.
+     * @param failed      How many notifications failed.
+     * @param filtered    How many samples were left out by the listener's subscription.
+     * @param dropped     How many samples were discarded by the listener's queue.
+     * @param queued      How many samples are waiting in the listener's queue.
+     * @param meanLatency The mean time taken by a notification.
+     * @param p50Latency  The median time taken by a notification.
+     * @param p99Latency  The 99th percentile of the time taken by a notification.
+     * @param p999Latency The 99.9th percentile of the time taken by a notification.
+     * @param maxLatency  The longest time taken by a notification.
+     */
+    @ConstructorProperties({"device", "eventKey", "sent", "samples", "failed", "filtered", "dropped", "queued",
+            "meanLatency", "p50Latency", "p99Latency", "p999Latency", "maxLatency"})
+    public ListenerSnapshot(String device, String eventKey, long sent, long samples, long failed, long filtered,
+                            long dropped, int queued, double meanLatency, long p50Latency, long p99Latency,
+                            long p999Latency, long maxLatency) {
+        this.device = device;
+        this.eventKey = eventKey;
+        this.sent = sent;
+        this.samples = samples;
+        this.failed = failed;
+        this.filtered = filtered;
+        this.dropped = dropped;
+        this.queued = queued;
+        this.meanLatency = meanLatency;
+        this.p50Latency = p50Latency;
+        this.p99Latency = p99Latency;
+        this.p999Latency = p999Latency;
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * Takes a snapshot of a listener's statistics.
+     *
+     * @param device   The listener's device name.
+     * @param eventKey The event the listener registered for.
+     * @param stats    The listener's counters.
+     * @param dropped  How many samples were discarded by the listener's queue.
+     * @param queued   How many samples are waiting in the listener's queue.
+     * @return The snapshot.
+     */
+    public static ListenerSnapshot of(String device, String eventKey, ListenerStats stats, long dropped, int queued) {
+        LatencyHistogram latency = stats.getLatency();
+        return new ListenerSnapshot(device, eventKey, stats.getSent(), stats.getSamples(), stats.getFailed(),
+                stats.getFiltered(), dropped, queued, latency.getMean(), latency.getPercentile(0.5), latency.getPercentile(0.99),
+                latency.getPercentile(0.999), latency.getMax());
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    public String getEventKey() {
+        return eventKey;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getFiltered() {
+        return filtered;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public double getMeanLatency() {
+        return meanLatency;
+    }
+
+    public long getP50Latency() {
+        return p50Latency;
+    }
+
+    public long getP99Latency() {
+        return p99Latency;
+    }
+
+    public long getP999Latency() {
+        return p999Latency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+}
@@ -0,0 +1,67 @@
+package org.unbiquitous.unbihealth.imu.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the notifications sent to a single listener, how long the gateway took to send them and how many
+ * samples the listener's subscription filtered out.
+ */
+public final class ListenerStats {
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Counts a successful notification.
+     *
+     * @param samples How many samples it carried.
+     * @param nanos   How long the gateway took to send it, in nanoseconds.
+     */
+    public void sent(int samples, long nanos) {
+        sent.increment();
+        this.samples.add(samples);
+        latency.record(nanos);
+    }
+
+    /**
+     * Counts a failed notification.
+     *
+     * @param nanos How long the gateway took to fail, in nanoseconds.
+     */
+    public void failed(long nanos) {
+        failed.increment();
+        latency.record(nanos);
+    }
+
+    /**
+     * Counts a sample left out by the listener's subscription.
+     */
+    public void filtered() {
+        filtered.increment();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getFiltered() {
+        return filtered.sum();
+    }
+
+    /**
+     * @return The time taken by every notification, successful or not.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+}
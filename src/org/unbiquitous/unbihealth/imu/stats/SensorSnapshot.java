@@ -0,0 +1,73 @@
+package org.unbiquitous.unbihealth.imu.stats;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The statistics of a single sensor at a given moment.
+ */
+public final class SensorSnapshot {
+    private final String id;
+    private final long received;
+    private final long throttled;
+    private final long suppressed;
+    private final long notified;
+    private final long late;
+    private final boolean recording;
+    private final int recordSize;
+
+    /**
+     * @param id         The sensor id.
+     * @param received   How many samples were handed over to the driver.
+     * @param throttled  How many samples were held back by the minimum update interval.
+     * @param suppressed How many samples weren't notified for changing less than the sensitivity.
+     * @param notified   How many samples were handed over to the dispatcher.
+     * @param late       How many samples arrived too late to be reordered and were discarded.
+     * @param recording  Whether the sensor is being recorded.
+     * @param recordSize How many samples the active recording holds, if any.
+     */
+    @ConstructorProperties({"id", "received", "throttled", "suppressed", "notified", "late", "recording",
+            "recordSize"})
+    public SensorSnapshot(String id, long received, long throttled, long suppressed, long notified, long late,
+                          boolean recording, int recordSize) {
+        this.id = id;
+        this.received = received;
+        this.throttled = throttled;
+        this.suppressed = suppressed;
+        this.notified = notified;
+        this.late = late;
+        this.recording = recording;
+        this.recordSize = recordSize;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getThrottled() {
+        return throttled;
+    }
+
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    public long getNotified() {
+        return notified;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+}
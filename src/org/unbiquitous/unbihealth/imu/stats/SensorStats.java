@@ -0,0 +1,89 @@
+package org.unbiquitous.unbihealth.imu.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what happens to the samples of a single sensor. Counters are striped, so ingest threads
+ * never contend on them.
+ */
+public final class SensorStats {
+    private final LongAdder received = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder notified = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    /**
+     * Counts a sample handed over to the driver.
+     */
+    public void received() {
+        received.increment();
+    }
+
+    /**
+     * Counts a sample held back for arriving before the minimum update interval. The latest one may still be
+     * notified later, when the interval is over.
+     */
+    public void throttled() {
+        throttled.increment();
+    }
+
+    /**
+     * Counts a sample that wasn't notified for changing less than the sensitivity.
+     */
+    public void suppressed() {
+        suppressed.increment();
+    }
+
+    /**
+     * Counts a sample discarded for arriving after the reorder window it belonged to was released.
+     */
+    public void late() {
+        late.increment();
+    }
+
+    /**
+     * Counts a sample handed over to the dispatcher.
+     */
+    public void notified() {
+        notified.increment();
+    }
+
+    /**
+     * Counts a whole batch of samples at once.
+     *
+     * @param received   How many samples were handed over to the driver.
+     * @param throttled  How many were held back by the minimum update interval.
+     * @param suppressed How many weren't notified for changing less than the sensitivity.
+     * @param notified   How many were handed over to the dispatcher.
+     */
+    public void add(long received, long throttled, long suppressed, long notified) {
+        this.received.add(received);
+        if (throttled > 0)
+            this.throttled.add(throttled);
+        if (suppressed > 0)
+            this.suppressed.add(suppressed);
+        if (notified > 0)
+            this.notified.add(notified);
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    public long getNotified() {
+        return notified.sum();
+    }
+
+    public long getLate() {
+        return late.sum();
+    }
+}
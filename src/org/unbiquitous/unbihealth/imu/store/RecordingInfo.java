@@ -0,0 +1,62 @@
+package org.unbiquitous.unbihealth.imu.store;
+
+/**
+ * Describes a recording kept in a {@link RecordingStore}.
+ */
+public final class RecordingInfo {
+    private final String sensorId;
+    private final String recordId;
+    private final long startTime;
+    private final long endTime;
+    private final int size;
+    private final long storedTime;
+    // The position of the first sample in the sensor's log.
+    final long position;
+
+    RecordingInfo(String sensorId, String recordId, long startTime, long endTime, int size, long storedTime,
+                  long position) {
+        this.sensorId = sensorId;
+        this.recordId = recordId;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.size = size;
+        this.storedTime = storedTime;
+        this.position = position;
+    }
+
+    public String getSensorId() {
+        return sensorId;
+    }
+
+    public String getRecordId() {
+        return recordId;
+    }
+
+    /**
+     * @return The timestamp of the first sample or zero, if the recording is empty.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return The timestamp of the last sample or zero, if the recording is empty.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return How many samples the recording holds.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return When the recording was stored, in milliseconds since the epoch.
+     */
+    public long getStoredTime() {
+        return storedTime;
+    }
+}
@@ -0,0 +1,267 @@
+package org.unbiquitous.unbihealth.imu.store;
+
+import org.unbiquitous.unbihealth.imu.record.ChunkedSampleStore;
+import org.unbiquitous.unbihealth.imu.record.SampleStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps recordings on local disk, so they can be listed and fetched after the driver restarts.
+ * <p>
+ * Each sensor has its own directory under the root, named after its id, holding an append-only log of
+ * segment files and a catalog of the recordings within it. The directory name is the id's UTF-8 bytes with
+ * every one but lowercase ASCII letters, digits, '-' and '_' written as {@code %XX}, so any id makes a single,
+ * legal file name on any file system, even a case insensitive one. Segments carry a sparse index of timestamps, so
+ * both reading a recording and querying a sensor by time range only map the parts of the files they need.
+ * Segments and catalogs left inconsistent by a crash are repaired when opened. Nothing is deleted unless
+ * asked to, by {@link #retain(long, long)}.
+ */
+public final class RecordingStore implements Closeable {
+    /**
+     * How many samples each index entry covers.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+    /**
+     * The maximum number of samples in a segment, 40 MB worth of them.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final Path root;
+    private final int blockSize;
+    private final int segmentSize;
+    private final Map<String, SensorLog> logs = new TreeMap<>();
+
+    private RecordingStore(Path root, int blockSize, int segmentSize) {
+        this.root = root;
+        this.blockSize = blockSize;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens a store with the default block and segment sizes.
+     *
+     * @param root The store's directory, which is created if needed.
+     * @return The store.
+     * @throws IOException If the store can't be read or created.
+     */
+    public static RecordingStore open(Path root) throws IOException {
+        return open(root, DEFAULT_BLOCK_SIZE, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a store, loading the catalogs of every sensor already in it.
+     *
+     * @param root        The store's directory, which is created if needed.
+     * @param blockSize   How many samples each index entry covers, in new segments.
+     * @param segmentSize The maximum number of samples in a segment.
+     * @return The store.
+     * @throws IOException If the store can't be read or created.
+     */
+    public static RecordingStore open(Path root, int blockSize, int segmentSize) throws IOException {
+        if ((blockSize <= 0) || (segmentSize <= 0))
+            throw new IllegalArgumentException("non-positive block or segment size");
+        Files.createDirectories(root);
+        RecordingStore store = new RecordingStore(root, blockSize, segmentSize);
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String sensorId = decode(dir.getFileName().toString());
+                if (sensorId != null)
+                    store.logs.put(sensorId, SensorLog.open(sensorId, dir, blockSize, segmentSize));
+            }
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Stores a finished recording. Its samples are on disk when this method returns.
+     *
+     * @param sensorId The recorded sensor's id.
+     * @param recordId The recording's id.
+     * @param samples  The recorded curve.
+     * @return The stored recording.
+     * @throws IOException If writing fails.
+     */
+    public RecordingInfo append(String sensorId, String recordId, SampleStore samples) throws IOException {
+        return openLog(sensorId).append(recordId, samples);
+    }
+
+    /**
+     * Lists the stored recordings.
+     *
+     * @param sensorId The id of the sensor whose recordings to list or null, to list all of them.
+     * @return The recordings, by sensor and then in the order they were stored.
+     */
+    public List<RecordingInfo> list(String sensorId) {
+        List<RecordingInfo> list = new ArrayList<>();
+        if (sensorId != null) {
+            SensorLog log = getLog(sensorId);
+            if (log != null)
+                list.addAll(log.list());
+        } else {
+            List<SensorLog> all;
+            synchronized (this) {
+                all = new ArrayList<>(logs.values());
+            }
+            for (SensorLog log : all)
+                list.addAll(log.list());
+        }
+        return list;
+    }
+
+    /**
+     * @param sensorId The recorded sensor's id.
+     * @param recordId The recording's id.
+     * @return The recording or null, if there's no such recording of the given sensor.
+     */
+    public RecordingInfo find(String sensorId, String recordId) {
+        SensorLog log = getLog(sensorId);
+        return log == null ? null : log.find(recordId);
+    }
+
+    /**
+     * Reads a range of a recording.
+     *
+     * @param info The recording.
+     * @param from The position of the first sample to read, inclusive.
+     * @param to   The position of the last sample to read, exclusive.
+     * @return The samples.
+     * @throws IOException If the samples can't be read.
+     */
+    public ChunkedSampleStore read(RecordingInfo info, int from, int to) throws IOException {
+        if ((from < 0) || (to > info.getSize()) || (from > to))
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + to + "), Size: " + info.getSize());
+        SensorLog log = getLog(info.getSensorId());
+        if (log == null)
+            throw new IllegalStateException("store closed");
+        return log.read(info, from, to);
+    }
+
+    /**
+     * Reads the samples of a sensor within a time range, regardless of the recording they belong to, in the
+     * order they were stored.
+     *
+     * @param sensorId The sensor's id.
+     * @param from     The smallest timestamp to read, inclusive.
+     * @param to       The largest timestamp to read, inclusive.
+     * @param limit    The maximum number of samples to read.
+     * @return The samples.
+     * @throws IOException If the samples can't be read.
+     */
+    public ChunkedSampleStore query(String sensorId, long from, long to, int limit) throws IOException {
+        SensorLog log = getLog(sensorId);
+        return log == null ? new ChunkedSampleStore() : log.query(from, to, limit);
+    }
+
+    /**
+     * Drops the recordings stored before the cutoff and, for each sensor whose samples take more than the
+     * maximum size, its oldest recordings. Samples are deleted by whole segments, so a sensor may take up to
+     * a segment more than the maximum size and a recording may be kept a little past the cutoff, while other
+     * recordings share its segment.
+     *
+     * @param cutoff  When the oldest recording to keep was stored, in milliseconds since the epoch.
+     * @param maxSize The maximum size of each sensor's samples, in bytes; zero means no limit.
+     * @return How many recordings were dropped.
+     * @throws IOException If any sensor's files can't be rewritten or deleted. The others are still retained.
+     */
+    public int retain(long cutoff, long maxSize) throws IOException {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("negative max size");
+        long maxSamples = maxSize == 0 ? Long.MAX_VALUE : maxSize / Segment.RECORD_SIZE;
+        List<SensorLog> all;
+        synchronized (this) {
+            all = new ArrayList<>(logs.values());
+        }
+        IOException error = null;
+        int dropped = 0;
+        for (SensorLog log : all) {
+            try {
+                dropped += log.retain(cutoff, maxSamples);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+        return dropped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (SensorLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        logs.clear();
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * @return The name of a sensor's directory.
+     */
+    static String encode(String sensorId) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : sensorId.getBytes(StandardCharsets.UTF_8)) {
+            if (((b >= 'a') && (b <= 'z')) || ((b >= '0') && (b <= '9')) || (b == '-') || (b == '_'))
+                name.append((char) b);
+            else
+                name.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return The id of the sensor whose directory has the given name or null, if it's not a sensor's directory.
+     */
+    static String decode(String name) {
+        byte[] bytes = new byte[name.length()];
+        int n = 0;
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if (c != '%')
+                bytes[n++] = (byte) c;
+            else if (i + 2 < name.length()) {
+                int hi = Character.digit(name.charAt(i + 1), 16), lo = Character.digit(name.charAt(i + 2), 16);
+                if ((hi < 0) || (lo < 0))
+                    return null;
+                bytes[n++] = (byte) ((hi << 4) | lo);
+                i += 2;
+            } else
+                return null;
+        }
+        // Only names written by encode, e.g. not other directories or ids from invalid UTF-8.
+        String sensorId = new String(bytes, 0, n, StandardCharsets.UTF_8);
+        return encode(sensorId).equals(name) ? sensorId : null;
+    }
+
+    private synchronized SensorLog getLog(String sensorId) {
+        return logs.get(sensorId);
+    }
+
+    private synchronized SensorLog openLog(String sensorId) throws IOException {
+        SensorLog log = logs.get(sensorId);
+        if (log == null) {
+            log = SensorLog.open(sensorId, root.resolve(encode(sensorId)), blockSize, segmentSize);
+            logs.put(sensorId, log);
+        }
+        return log;
+    }
+}
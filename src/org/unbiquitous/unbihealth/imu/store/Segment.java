@@ -0,0 +1,331 @@
+package org.unbiquitous.unbihealth.imu.store;
+
+import org.unbiquitous.unbihealth.imu.record.SampleStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An append-only file holding a contiguous run of a sensor's samples, starting at a given position of the
+ * sensor's log.
+ * <p>
+ * The file is big-endian: a {@value #HEADER_SIZE}-byte header, holding the magic number {@value #MAGIC},
+ * the format version, the record size and the block size, followed by one {@value #RECORD_SIZE}-byte record
+ * per sample, holding its timestamp (long) and w, x, y and z (doubles), like
+ * {@link org.unbiquitous.unbihealth.imu.record.MappedSampleStore}.
+ * <p>
+ * Records are grouped in blocks of a fixed number of samples. A sparse index file next to the segment holds
+ * the smallest and the largest timestamp of every full block, so time range queries only map the blocks
+ * that may hold matching samples. The index is kept in memory as well; the last, partial block is only
+ * indexed in memory. Since the index can always be rebuilt from the records, a segment left behind by a
+ * crash is repaired on open: partial records are cut off and missing index entries are recomputed.
+ */
+final class Segment implements Closeable {
+    static final String EXTENSION = ".seg";
+    static final String INDEX_EXTENSION = ".idx";
+    static final int MAGIC = 0x494D5553;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int WRITE_BATCH = 1024;
+
+    /**
+     * The log position of the first sample.
+     */
+    final long base;
+    private final FileChannel channel;
+    private final FileChannel index;
+    private final int blockSize;
+    private int size = 0;
+    private long[] min = new long[16], max = new long[16];
+
+    private Segment(long base, FileChannel channel, FileChannel index, int blockSize) {
+        this.base = base;
+        this.channel = channel;
+        this.index = index;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param dir  The sensor's directory.
+     * @param base The log position of the segment's first sample.
+     * @return The path of the segment file.
+     */
+    static Path path(Path dir, long base) {
+        return dir.resolve(String.format("%020d", base) + EXTENSION);
+    }
+
+    /**
+     * Deletes a closed segment's files.
+     *
+     * @param dir  The sensor's directory.
+     * @param base The log position of the segment's first sample.
+     * @throws IOException If the files can't be deleted.
+     */
+    static void delete(Path dir, long base) throws IOException {
+        Files.deleteIfExists(path(dir, base));
+        Files.deleteIfExists(indexPath(dir, base));
+    }
+
+    private static Path indexPath(Path dir, long base) {
+        return dir.resolve(String.format("%020d", base) + INDEX_EXTENSION);
+    }
+
+    /**
+     * Creates a new, empty segment, replacing any existing one.
+     *
+     * @param dir       The sensor's directory.
+     * @param base      The log position of the segment's first sample.
+     * @param blockSize How many samples each index entry covers.
+     * @return The segment, open for appending.
+     * @throws IOException If the files can't be created.
+     */
+    static Segment create(Path dir, long base, int blockSize) throws IOException {
+        FileChannel channel = FileChannel.open(path(dir, base), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel index = null;
+        try {
+            index = FileChannel.open(indexPath(dir, base), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(blockSize).flip();
+            writeFully(channel, header, 0);
+            return new Segment(base, channel, index, blockSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (index != null)
+                index.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing segment, repairing it if needed.
+     *
+     * @param dir      The sensor's directory.
+     * @param base     The log position of the segment's first sample.
+     * @param writable Whether samples will be appended to the segment.
+     * @return The segment.
+     * @throws IOException If the files can't be read or are not a valid segment.
+     */
+    static Segment open(Path dir, long base, boolean writable) throws IOException {
+        Path path = path(dir, base);
+        FileChannel channel = writable ?
+                FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(path, StandardOpenOption.READ);
+        FileChannel index = null;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) != HEADER_SIZE)
+                throw new IOException("not a segment file: " + path);
+            header.flip();
+            int blockSize;
+            if ((header.getInt() != MAGIC) || (header.getInt() != VERSION) || (header.getInt() != RECORD_SIZE) ||
+                    ((blockSize = header.getInt()) <= 0))
+                throw new IOException("not a segment file or unsupported version: " + path);
+            long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+            if (records > Integer.MAX_VALUE)
+                throw new IOException("corrupt segment file: " + path);
+            if (writable)
+                channel.truncate(offset((int) records));
+
+            Path indexPath = indexPath(dir, base);
+            index = writable ?
+                    FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE) :
+                    FileChannel.open(indexPath, StandardOpenOption.READ);
+            Segment segment = new Segment(base, channel, writable ? index : null, blockSize);
+            segment.load((int) records, index);
+            if (!writable)
+                index.close();
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (index != null)
+                index.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return How many samples the segment holds.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends a range of samples.
+     *
+     * @param source The samples to append.
+     * @param from   The position of the first sample to append, inclusive.
+     * @param to     The position of the last sample to append, exclusive.
+     * @throws IOException If writing fails.
+     */
+    void append(SampleStore source, int from, int to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(to - from, WRITE_BATCH) * RECORD_SIZE);
+        for (int i = from; i < to; ) {
+            buffer.clear();
+            int start = size;
+            for (int n = Math.min(to - i, WRITE_BATCH); n > 0; --n, ++i) {
+                long ts = source.getTimestamp(i);
+                buffer.putLong(ts).putDouble(source.getW(i)).putDouble(source.getX(i))
+                        .putDouble(source.getY(i)).putDouble(source.getZ(i));
+                indexSample(size++, ts);
+            }
+            buffer.flip();
+            writeFully(channel, buffer, offset(start));
+            writeIndex(start / blockSize, size / blockSize);
+        }
+    }
+
+    /**
+     * Flushes the appended samples to disk.
+     *
+     * @throws IOException If flushing fails.
+     */
+    void force() throws IOException {
+        channel.force(false);
+        if (index != null)
+            index.force(false);
+    }
+
+    /**
+     * Copies a range of samples.
+     *
+     * @param from   The position of the first sample to copy, inclusive.
+     * @param to     The position of the last sample to copy, exclusive.
+     * @param target The store to append the samples to.
+     * @throws IOException If the samples can't be mapped.
+     */
+    void read(int from, int to, SampleStore target) throws IOException {
+        if (from >= to)
+            return;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset(from), (long) (to - from) * RECORD_SIZE);
+        for (int i = from; i < to; ++i)
+            target.add(buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+    }
+
+    /**
+     * Copies the samples within a time range, mapping only the blocks whose index entry overlaps it.
+     *
+     * @param from   The smallest timestamp to copy, inclusive.
+     * @param to     The largest timestamp to copy, inclusive.
+     * @param limit  The maximum number of samples to copy.
+     * @param target The store to append the samples to.
+     * @return How many samples were copied.
+     * @throws IOException If the samples can't be mapped.
+     */
+    int query(long from, long to, int limit, SampleStore target) throws IOException {
+        int blocks = (size + blockSize - 1) / blockSize, copied = 0;
+        for (int b = 0; (b < blocks) && (copied < limit); ++b) {
+            if ((max[b] < from) || (min[b] > to))
+                continue;
+            // Maps the whole run of overlapping blocks at once.
+            int end = b + 1;
+            while ((end < blocks) && (max[end] >= from) && (min[end] <= to))
+                ++end;
+            int first = b * blockSize, last = Math.min(end * blockSize, size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset(first),
+                    (long) (last - first) * RECORD_SIZE);
+            for (int i = first; (i < last) && (copied < limit); ++i) {
+                long ts = buffer.getLong();
+                if ((ts < from) || (ts > to)) {
+                    buffer.position(buffer.position() + RECORD_SIZE - 8);
+                    continue;
+                }
+                target.add(ts, buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                ++copied;
+            }
+            b = end - 1;
+        }
+        return copied;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (index != null)
+                index.close();
+        }
+    }
+
+    private void load(int records, FileChannel indexChannel) throws IOException {
+        int full = records / blockSize;
+        int indexed = (int) Math.min(indexChannel.size() / INDEX_ENTRY_SIZE, full);
+        ByteBuffer entries = ByteBuffer.allocate(indexed * INDEX_ENTRY_SIZE);
+        while (entries.hasRemaining()) {
+            if (indexChannel.read(entries, entries.position()) < 0)
+                throw new IOException("truncated index file");
+        }
+        entries.flip();
+        for (int b = 0; b < indexed; ++b) {
+            ensure(b);
+            min[b] = entries.getLong();
+            max[b] = entries.getLong();
+        }
+        size = indexed * blockSize;
+
+        // Rebuilds the entries of the blocks past the index, including the partial one.
+        if (records > size) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset(size),
+                    (long) (records - size) * RECORD_SIZE);
+            while (size < records) {
+                indexSample(size++, buffer.getLong());
+                buffer.position(buffer.position() + RECORD_SIZE - 8);
+            }
+        }
+        if (index != null) {
+            index.truncate((long) indexed * INDEX_ENTRY_SIZE);
+            writeIndex(indexed, full);
+        }
+    }
+
+    private void indexSample(int position, long ts) {
+        int b = position / blockSize;
+        if (position % blockSize == 0) {
+            ensure(b);
+            min[b] = ts;
+            max[b] = ts;
+        } else {
+            min[b] = Math.min(min[b], ts);
+            max[b] = Math.max(max[b], ts);
+        }
+    }
+
+    private void writeIndex(int from, int to) throws IOException {
+        if (from >= to)
+            return;
+        ByteBuffer entries = ByteBuffer.allocate((to - from) * INDEX_ENTRY_SIZE);
+        for (int b = from; b < to; ++b)
+            entries.putLong(min[b]).putLong(max[b]);
+        entries.flip();
+        writeFully(index, entries, (long) from * INDEX_ENTRY_SIZE);
+    }
+
+    private void ensure(int block) {
+        if (block >= min.length) {
+            min = Arrays.copyOf(min, Math.max(min.length * 2, block + 1));
+            max = Arrays.copyOf(max, min.length);
+        }
+    }
+
+    private static long offset(int index) {
+        return HEADER_SIZE + (long) index * RECORD_SIZE;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
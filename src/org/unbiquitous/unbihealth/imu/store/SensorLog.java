@@ -0,0 +1,362 @@
+package org.unbiquitous.unbihealth.imu.store;
+
+import org.unbiquitous.unbihealth.imu.record.ChunkedSampleStore;
+import org.unbiquitous.unbihealth.imu.record.SampleStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stored samples of a single sensor: a directory of {@link Segment} files, which together form an
+ * append-only log addressed by sample position, and a catalog of the recordings within it.
+ * <p>
+ * The catalog is an append-only file with one entry per recording, holding its record id, as a short length
+ * and UTF-8 bytes, the log position of its first sample (long), its size (int), the timestamps of its first
+ * and last samples (longs) and when it was stored (long). Samples are flushed to disk before the catalog
+ * entry is written, so an entry always refers to durable samples. On open, a partial trailing entry or one
+ * referring to samples that are not there is cut off.
+ * <p>
+ * Old samples are dropped by whole leading segments, so the log may start at any position. The catalog is
+ * rewritten without the recordings they held before the segment files are deleted.
+ * <p>
+ * All methods are synchronized on the instance.
+ */
+final class SensorLog implements Closeable {
+    static final String CATALOG_FILE = "catalog";
+    private static final int ENTRY_FIXED_SIZE = 2 + 8 + 4 + 8 + 8 + 8;
+
+    private final String sensorId;
+    private final Path dir;
+    private final int blockSize;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, RecordingInfo> recordings = new LinkedHashMap<>();
+    private FileChannel catalog;
+    // The position after the last sample, counting the dropped ones.
+    private long size = 0;
+
+    private SensorLog(String sensorId, Path dir, int blockSize, int segmentSize) {
+        this.sensorId = sensorId;
+        this.dir = dir;
+        this.blockSize = blockSize;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the log in the given directory, creating it if needed.
+     *
+     * @param sensorId    The sensor's id.
+     * @param dir         The sensor's directory.
+     * @param blockSize   How many samples each index entry covers, in new segments.
+     * @param segmentSize The maximum number of samples in a segment.
+     * @return The log.
+     * @throws IOException If the files can't be read or created.
+     */
+    static SensorLog open(String sensorId, Path dir, int blockSize, int segmentSize) throws IOException {
+        Files.createDirectories(dir);
+        SensorLog log = new SensorLog(sensorId, dir, blockSize, segmentSize);
+        try {
+            log.loadSegments();
+            log.loadCatalog();
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * Appends a recording, replacing any other one with the same id in the catalog.
+     *
+     * @param recordId The recording's id.
+     * @param store    The recorded curve.
+     * @return The stored recording.
+     * @throws IOException If writing fails.
+     */
+    synchronized RecordingInfo append(String recordId, SampleStore store) throws IOException {
+        int count = store.size();
+        long position = size;
+        try {
+            for (int i = 0; i < count; ) {
+                Segment last = segments.get(segments.size() - 1);
+                if (last.size() == segmentSize) {
+                    last.force();
+                    last = Segment.create(dir, size, blockSize);
+                    segments.add(last);
+                }
+                int n = Math.min(count - i, segmentSize - last.size());
+                last.append(store, i, i + n);
+                size += n;
+                i += n;
+            }
+            segments.get(segments.size() - 1).force();
+        } catch (IOException | RuntimeException e) {
+            // Reopens the last segment, so its in-memory state matches what was actually written.
+            Segment last = segments.remove(segments.size() - 1);
+            last.close();
+            last = Segment.open(dir, last.base, true);
+            segments.add(last);
+            size = last.base + last.size();
+            throw e;
+        }
+
+        RecordingInfo info = new RecordingInfo(sensorId, recordId,
+                count > 0 ? store.getTimestamp(0) : 0, count > 0 ? store.getTimestamp(count - 1) : 0,
+                count, System.currentTimeMillis(), position);
+        ByteBuffer entry = encode(info);
+        long offset = catalog.size();
+        while (entry.hasRemaining())
+            offset += catalog.write(entry, offset);
+        catalog.force(false);
+        recordings.remove(recordId);
+        recordings.put(recordId, info);
+        return info;
+    }
+
+    /**
+     * @return The cataloged recordings, in the order they were stored.
+     */
+    synchronized List<RecordingInfo> list() {
+        return new ArrayList<>(recordings.values());
+    }
+
+    /**
+     * @param recordId The recording's id.
+     * @return The recording or null, if there's none with the given id.
+     */
+    synchronized RecordingInfo find(String recordId) {
+        return recordings.get(recordId);
+    }
+
+    /**
+     * Reads a range of a recording.
+     *
+     * @param info The recording.
+     * @param from The position of the first sample to read, inclusive.
+     * @param to   The position of the last sample to read, exclusive.
+     * @return The samples.
+     * @throws IOException If the samples can't be mapped.
+     */
+    synchronized ChunkedSampleStore read(RecordingInfo info, int from, int to) throws IOException {
+        ChunkedSampleStore target = new ChunkedSampleStore();
+        long start = info.position + from, end = info.position + to;
+        if ((start < end) && !segments.isEmpty() && (start < segments.get(0).base))
+            throw new IOException("recording " + info.getRecordId() + " is no longer stored");
+        for (int s = find(start); (s < segments.size()) && (start < end); ++s) {
+            Segment segment = segments.get(s);
+            int last = (int) Math.min(end - segment.base, segment.size());
+            segment.read((int) (start - segment.base), last, target);
+            start = segment.base + last;
+        }
+        return target;
+    }
+
+    /**
+     * Reads the samples within a time range, regardless of the recording they belong to, in the order they
+     * were stored.
+     *
+     * @param from  The smallest timestamp to read, inclusive.
+     * @param to    The largest timestamp to read, inclusive.
+     * @param limit The maximum number of samples to read.
+     * @return The samples.
+     * @throws IOException If the samples can't be mapped.
+     */
+    synchronized ChunkedSampleStore query(long from, long to, int limit) throws IOException {
+        ChunkedSampleStore target = new ChunkedSampleStore();
+        for (int s = 0; (s < segments.size()) && (target.size() < limit); ++s)
+            segments.get(s).query(from, to, limit - target.size(), target);
+        return target;
+    }
+
+    /**
+     * Drops the recordings stored before the cutoff and then, while the log holds more than the maximum
+     * number of samples, its oldest segments, along with the recordings they held. Leading segments no
+     * recording refers to anymore are dropped as well. The last segment is always kept, since new samples
+     * go there.
+     *
+     * @param cutoff     When the oldest recording to keep was stored, in milliseconds since the epoch.
+     * @param maxSamples The maximum number of samples to keep.
+     * @return How many recordings were dropped.
+     * @throws IOException If the catalog can't be rewritten or the segments can't be deleted.
+     */
+    synchronized int retain(long cutoff, long maxSamples) throws IOException {
+        if (segments.isEmpty())
+            return 0;
+        int dropped = 0;
+        Iterator<RecordingInfo> it = recordings.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getStoredTime() < cutoff) {
+                it.remove();
+                ++dropped;
+            }
+        }
+
+        // Recordings are cataloged in the order they were stored, so the first one is the oldest.
+        long keep = recordings.isEmpty() ? size : recordings.values().iterator().next().position;
+        int segmentsDropped = 0;
+        while (segmentsDropped < segments.size() - 1) {
+            Segment segment = segments.get(segmentsDropped);
+            if ((segment.base + segment.size() > keep) && (size - segment.base <= maxSamples))
+                break;
+            ++segmentsDropped;
+        }
+        long base = segments.get(segmentsDropped).base;
+        it = recordings.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().position >= base)
+                break;
+            it.remove();
+            ++dropped;
+        }
+        if (dropped > 0)
+            rewriteCatalog();
+
+        IOException error = null;
+        for (; segmentsDropped > 0; --segmentsDropped) {
+            Segment segment = segments.remove(0);
+            try {
+                segment.close();
+                Segment.delete(dir, segment.base);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+        return dropped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (Segment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        segments.clear();
+        if (catalog != null)
+            catalog.close();
+        if (error != null)
+            throw error;
+    }
+
+    private void loadSegments() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + Segment.EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - Segment.EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (int i = 0; i < bases.size(); ++i) {
+            long base = bases.get(i);
+            if (i == 0)
+                size = base;
+            else if (base != size)
+                throw new IOException("missing samples before segment: " + Segment.path(dir, base));
+            Segment segment = Segment.open(dir, base, i == bases.size() - 1);
+            segments.add(segment);
+            size += segment.size();
+        }
+        if (segments.isEmpty())
+            segments.add(Segment.create(dir, 0, blockSize));
+    }
+
+    private void loadCatalog() throws IOException {
+        catalog = FileChannel.open(dir.resolve(CATALOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (catalog.size() > Integer.MAX_VALUE)
+            throw new IOException("corrupt catalog: " + dir.resolve(CATALOG_FILE));
+        ByteBuffer in = ByteBuffer.allocate((int) catalog.size());
+        while (in.hasRemaining()) {
+            if (catalog.read(in, in.position()) < 0)
+                break;
+        }
+        in.flip();
+        long first = segments.get(0).base;
+        int valid = 0;
+        try {
+            while (in.hasRemaining()) {
+                byte[] id = new byte[in.getShort() & 0xFFFF];
+                in.get(id);
+                long position = in.getLong();
+                int count = in.getInt();
+                long start = in.getLong(), end = in.getLong(), stored = in.getLong();
+                if ((position < 0) || (count < 0) || (position + count > size))
+                    break;
+                valid = in.position();
+                if (position < first)
+                    continue;
+                String recordId = new String(id, StandardCharsets.UTF_8);
+                recordings.remove(recordId);
+                recordings.put(recordId, new RecordingInfo(sensorId, recordId, start, end, count, stored, position));
+            }
+        } catch (BufferUnderflowException e) {
+            // A partial entry, left behind by a crash.
+        }
+        catalog.truncate(valid);
+    }
+
+    /**
+     * Replaces the catalog with one holding only the current recordings, atomically.
+     */
+    private void rewriteCatalog() throws IOException {
+        Path path = dir.resolve(CATALOG_FILE);
+        Path temp = dir.resolve(CATALOG_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (RecordingInfo info : recordings.values()) {
+                ByteBuffer entry = encode(info);
+                while (entry.hasRemaining())
+                    out.write(entry);
+            }
+            out.force(false);
+        }
+        catalog.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        catalog = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static ByteBuffer encode(RecordingInfo info) {
+        byte[] id = info.getRecordId().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_FIXED_SIZE + id.length);
+        entry.putShort((short) id.length).put(id).putLong(info.position).putInt(info.getSize())
+                .putLong(info.getStartTime()).putLong(info.getEndTime()).putLong(info.getStoredTime()).flip();
+        return entry;
+    }
+
+    private int find(long position) {
+        int lo = 0, hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).base <= position)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+}
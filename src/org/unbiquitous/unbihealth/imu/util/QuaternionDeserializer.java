@@ -4,17 +4,17 @@ import java.io.IOException;
 
 import org.apache.commons.math3.complex.Quaternion;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * Deserializes a {@link Quaternion}.
+ * Deserializes a {@link Quaternion}, streaming its tokens instead of building a tree.
  * 
  * @author Luciano Santos
+ * @see SampleJson
  */
 public class QuaternionDeserializer extends JsonDeserializer<Quaternion> {
 
@@ -22,18 +22,13 @@ public class QuaternionDeserializer extends JsonDeserializer<Quaternion> {
 	public Quaternion deserialize(JsonParser parser, DeserializationContext context)
 			throws IOException, JsonProcessingException {
 
-		final String[] components = { "x", "y", "z", "w" };
-
-		ObjectNode node = parser.readValueAsTree();
 		double[] data = new double[4];
-		for (int i = 0; i < data.length; ++i) {
-			JsonNode value = node.get(components[i]);
-			if ((value != null) && value.isFloatingPointNumber())
-				data[i] = value.asDouble();
-			else
-				throw context.mappingException("Expected field component '" + components[i] + "'.");
+		try {
+			SampleJson.readQuaternion(parser, data);
+		} catch (JsonParseException e) {
+			throw context.mappingException(e.getOriginalMessage());
 		}
 
-		return new Quaternion(data[3], data[0], data[1], data[2]);
+		return new Quaternion(data[0], data[1], data[2], data[3]);
 	}
 }
@@ -10,19 +10,15 @@ import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 
 /**
- * Serializes a {@link Quaternion}.
+ * Serializes a {@link Quaternion}, writing its components directly as numbers.
  * 
  * @author Luciano Santos
+ * @see SampleJson
  */
 public class QuaternionSerializer extends JsonSerializer<Quaternion> {
 	@Override
 	public void serialize(Quaternion q, JsonGenerator gen, SerializerProvider provider)
 					throws IOException, JsonProcessingException {
-		gen.writeStartObject();
-		gen.writeObjectField("w", q.getQ0());
-		gen.writeObjectField("x", q.getQ1());
-		gen.writeObjectField("y", q.getQ2());
-		gen.writeObjectField("z", q.getQ3());
-		gen.writeEndObject();
+		SampleJson.writeQuaternion(gen, q.getQ0(), q.getQ1(), q.getQ2(), q.getQ3());
 	}
 }
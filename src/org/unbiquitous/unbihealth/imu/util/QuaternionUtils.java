@@ -8,6 +8,8 @@ import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
  * Utility functions for quaternions.
  */
 public final class QuaternionUtils {
+    private static final double SLERP_THRESHOLD = 0.9995;
+
     private QuaternionUtils() {
     }
 
@@ -37,6 +39,10 @@ public final class QuaternionUtils {
         return Quaternion.multiply(to, from.getInverse());
     }
 
+    /**
+     * Linearly interpolates each component. The result is not normalized; see {@link #nlerp} and
+     * {@link #slerp} for rotations.
+     */
     public static Quaternion interpolate(Quaternion from, Quaternion to, double t) {
         return new Quaternion(
                 interpolate(from.getQ0(), to.getQ0(), t),
@@ -49,4 +55,94 @@ public final class QuaternionUtils {
     public static double interpolate(double from, double to, double t) {
         return t * (to - from) + from;
     }
+
+    /**
+     * Spherically interpolates two rotations, along the shortest path.
+     *
+     * @param from The rotation at t = 0.
+     * @param to   The rotation at t = 1.
+     * @param t    The interpolation parameter, in [0, 1].
+     * @return The normalized interpolated rotation.
+     */
+    public static Quaternion slerp(Quaternion from, Quaternion to, double t) {
+        double[] out = new double[4];
+        slerp(from.getQ0(), from.getQ1(), from.getQ2(), from.getQ3(), to.getQ0(), to.getQ1(), to.getQ2(), to.getQ3(), t, out);
+        return new Quaternion(out[0], out[1], out[2], out[3]);
+    }
+
+    /**
+     * Linearly interpolates two rotations, along the shortest path, and normalizes the result.
+     *
+     * @param from The rotation at t = 0.
+     * @param to   The rotation at t = 1.
+     * @param t    The interpolation parameter, in [0, 1].
+     * @return The normalized interpolated rotation.
+     */
+    public static Quaternion nlerp(Quaternion from, Quaternion to, double t) {
+        double[] out = new double[4];
+        nlerp(from.getQ0(), from.getQ1(), from.getQ2(), from.getQ3(), to.getQ0(), to.getQ1(), to.getQ2(), to.getQ3(), t, out);
+        return new Quaternion(out[0], out[1], out[2], out[3]);
+    }
+
+    /**
+     * Spherically interpolates two rotations, given by their components, along the shortest path, without
+     * allocating. The inputs don't need to be normalized. Close rotations fall back to {@link #nlerp}, which
+     * is numerically safer and indistinguishable at that range.
+     *
+     * @param out Receives w, x, y and z of the normalized interpolated rotation, in this order.
+     */
+    public static void slerp(double w1, double x1, double y1, double z1,
+                             double w2, double x2, double y2, double z2, double t, double[] out) {
+        double n1 = norm(w1, x1, y1, z1), n2 = norm(w2, x2, y2, z2);
+        if ((n1 == 0) || (n2 == 0)) {
+            nlerp(w1, x1, y1, z1, w2, x2, y2, z2, t, out);
+            return;
+        }
+        double dot = (w1 * w2 + x1 * x2 + y1 * y2 + z1 * z2) / (n1 * n2);
+        if (Math.abs(dot) > SLERP_THRESHOLD) {
+            nlerp(w1, x1, y1, z1, w2, x2, y2, z2, t, out);
+            return;
+        }
+
+        double sign = 1;
+        if (dot < 0) {
+            dot = -dot;
+            sign = -1;
+        }
+        double theta = Math.acos(dot);
+        double sin = Math.sin(theta);
+        double a = Math.sin((1 - t) * theta) / (sin * n1);
+        double b = sign * Math.sin(t * theta) / (sin * n2);
+        out[0] = a * w1 + b * w2;
+        out[1] = a * x1 + b * x2;
+        out[2] = a * y1 + b * y2;
+        out[3] = a * z1 + b * z2;
+    }
+
+    /**
+     * Linearly interpolates two rotations, given by their components, along the shortest path and normalizes
+     * the result, without allocating. If the result is degenerate, it's the identity.
+     *
+     * @param out Receives w, x, y and z of the normalized interpolated rotation, in this order.
+     */
+    public static void nlerp(double w1, double x1, double y1, double z1,
+                             double w2, double x2, double y2, double z2, double t, double[] out) {
+        double b = (w1 * w2 + x1 * x2 + y1 * y2 + z1 * z2) < 0 ? -t : t;
+        double a = 1 - t;
+        double w = a * w1 + b * w2, x = a * x1 + b * x2, y = a * y1 + b * y2, z = a * z1 + b * z2;
+        double n = norm(w, x, y, z);
+        if (n == 0) {
+            out[0] = 1;
+            out[1] = out[2] = out[3] = 0;
+        } else {
+            out[0] = w / n;
+            out[1] = x / n;
+            out[2] = y / n;
+            out[3] = z / n;
+        }
+    }
+
+    private static double norm(double w, double x, double y, double z) {
+        return Math.sqrt(w * w + x * x + y * y + z * z);
+    }
 }
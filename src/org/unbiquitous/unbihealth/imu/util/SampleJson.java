@@ -0,0 +1,191 @@
+package org.unbiquitous.unbihealth.imu.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.unbiquitous.unbihealth.imu.record.ChunkedSampleStore;
+import org.unbiquitous.unbihealth.imu.record.SampleArrays;
+import org.unbiquitous.unbihealth.imu.record.SampleStore;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Streaming JSON codec for quaternions and samples. It reads and writes tokens directly, never building
+ * trees nor boxing numbers, in the same format Jackson produces for {@link org.unbiquitous.unbihealth.imu.Sample}:
+ * <p>
+ * <code>{"timestamp":...,"quaternion":{"w":...,"x":...,"y":...,"z":...}}</code>
+ */
+public final class SampleJson {
+    public static final String TIMESTAMP_FIELD = "timestamp";
+    public static final String QUATERNION_FIELD = "quaternion";
+    private static final String[] COMPONENTS = {"w", "x", "y", "z"};
+    private static final JsonFactory factory = new JsonFactory();
+
+    private SampleJson() {
+    }
+
+    /**
+     * Writes a quaternion as a JSON object.
+     */
+    public static void writeQuaternion(JsonGenerator gen, double w, double x, double y, double z) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("w", w);
+        gen.writeNumberField("x", x);
+        gen.writeNumberField("y", y);
+        gen.writeNumberField("z", z);
+        gen.writeEndObject();
+    }
+
+    /**
+     * Writes a sample as a JSON object.
+     */
+    public static void writeSample(JsonGenerator gen, long timestamp, double w, double x, double y, double z)
+            throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField(TIMESTAMP_FIELD, timestamp);
+        gen.writeFieldName(QUATERNION_FIELD);
+        writeQuaternion(gen, w, x, y, z);
+        gen.writeEndObject();
+    }
+
+    /**
+     * Writes a range of a recorded curve as a JSON array of samples.
+     *
+     * @param gen   The generator to write to.
+     * @param store The recorded curve.
+     * @param from  The position of the first sample to write, inclusive.
+     * @param to    The position of the last sample to write, exclusive.
+     */
+    public static void writeSamples(JsonGenerator gen, SampleStore store, int from, int to) throws IOException {
+        gen.writeStartArray();
+        for (int i = from; i < to; ++i)
+            writeSample(gen, store.getTimestamp(i), store.getW(i), store.getX(i), store.getY(i), store.getZ(i));
+        gen.writeEndArray();
+    }
+
+    /**
+     * @return A whole recorded curve as a JSON array of samples.
+     */
+    public static String toJson(SampleStore store) throws IOException {
+        StringWriter writer = new StringWriter(64 + store.size() * 100);
+        try (JsonGenerator gen = factory.createGenerator(writer)) {
+            writeSamples(gen, store, 0, store.size());
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Reads a quaternion object. The parser must be either at its start or at its first field; it's left at
+     * its end.
+     *
+     * @param parser The parser to read from.
+     * @param q      Where to store the components, in w, x, y, z order.
+     * @throws JsonParseException If it's not an object or any component is missing or not a number.
+     */
+    public static void readQuaternion(JsonParser parser, double[] q) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT)
+            token = parser.nextToken();
+        else if (token != JsonToken.FIELD_NAME)
+            throw new JsonParseException("Expected quaternion object.", parser.getCurrentLocation());
+
+        int found = 0;
+        for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+            int i = component(parser.getCurrentName());
+            token = parser.nextToken();
+            if (i < 0)
+                parser.skipChildren();
+            else if (token.isNumeric()) {
+                q[i] = parser.getDoubleValue();
+                found |= 1 << i;
+            } else
+                throw new JsonParseException("Expected field component '" + COMPONENTS[i] + "'.",
+                        parser.getCurrentLocation());
+        }
+        for (int i = 0; i < COMPONENTS.length; ++i) {
+            if ((found & (1 << i)) == 0)
+                throw new JsonParseException("Expected field component '" + COMPONENTS[i] + "'.",
+                        parser.getCurrentLocation());
+        }
+    }
+
+    /**
+     * Reads a JSON array of samples, appending each one to the given store. The parser must be at the start
+     * of the array; it's left at its end.
+     *
+     * @param parser The parser to read from.
+     * @param store  Where to store the samples.
+     * @throws JsonParseException If it's not an array of samples.
+     */
+    public static void readSamples(JsonParser parser, SampleStore store) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY)
+            throw new JsonParseException("Expected sample array.", parser.getCurrentLocation());
+
+        double[] q = new double[4];
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            long timestamp = 0;
+            boolean hasTimestamp = false, hasQuaternion = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (TIMESTAMP_FIELD.equals(name) && token.isNumeric()) {
+                    timestamp = parser.getLongValue();
+                    hasTimestamp = true;
+                } else if (QUATERNION_FIELD.equals(name)) {
+                    readQuaternion(parser, q);
+                    hasQuaternion = true;
+                } else
+                    parser.skipChildren();
+            }
+            if (!(hasTimestamp && hasQuaternion))
+                throw new JsonParseException("Expected sample timestamp and quaternion.", parser.getCurrentLocation());
+            store.add(timestamp, q[0], q[1], q[2], q[3]);
+        }
+        if (parser.getCurrentToken() != JsonToken.END_ARRAY)
+            throw new JsonParseException("Expected sample object.", parser.getCurrentLocation());
+    }
+
+    /**
+     * Reads a JSON array of samples.
+     *
+     * @param json The serialized data.
+     * @return The samples, in columnar storage.
+     * @throws JsonParseException If it's not an array of samples.
+     */
+    public static ChunkedSampleStore readSamples(String json) throws IOException {
+        ChunkedSampleStore store = new ChunkedSampleStore();
+        read(json, store);
+        return store;
+    }
+
+    /**
+     * Reads a JSON array of samples straight into flat primitive arrays, for post-processing.
+     *
+     * @param json The serialized data.
+     * @return The samples, one array per column.
+     * @throws JsonParseException If it's not an array of samples.
+     */
+    public static SampleArrays readArrays(String json) throws IOException {
+        SampleArrays arrays = new SampleArrays(Math.max(16, json.length() / 100));
+        read(json, arrays);
+        return arrays;
+    }
+
+    private static void read(String json, SampleStore store) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            parser.nextToken();
+            readSamples(parser, store);
+        }
+    }
+
+    private static int component(String name) {
+        for (int i = 0; i < COMPONENTS.length; ++i) {
+            if (COMPONENTS[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+}
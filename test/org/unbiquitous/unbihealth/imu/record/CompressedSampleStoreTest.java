@@ -0,0 +1,172 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompressedSampleStoreTest {
+    private static final double DELTA = CompressedSampleStore.MAX_ERROR;
+
+    @Test
+    public void timestampsRoundTripAcrossBlocks() {
+        CompressedSampleStore store = new CompressedSampleStore();
+        long[] timestamps = timestamps(3 * CompressedSampleStore.BLOCK_SIZE + 5);
+        for (int i = 0; i < timestamps.length; ++i)
+            store.add(timestamps[i], 1, 0, 0, 0);
+
+        assertEquals(timestamps.length, store.size());
+        for (int i = 0; i < timestamps.length; ++i)
+            assertEquals("timestamp " + i, timestamps[i], store.getTimestamp(i));
+        // Backwards, so every read restarts the decoding from the start of its block.
+        for (int i = timestamps.length - 1; i >= 0; --i)
+            assertEquals("timestamp " + i, timestamps[i], store.getTimestamp(i));
+    }
+
+    @Test
+    public void componentsRoundTripWithinMaxError() {
+        CompressedSampleStore store = new CompressedSampleStore();
+        store.add(0, 1, -1, 0.5, -0.25);
+        store.add(1, 2, -2, 0, 0);
+
+        assertEquals(1, store.getW(0), DELTA);
+        assertEquals(-1, store.getX(0), DELTA);
+        assertEquals(0.5, store.getY(0), DELTA);
+        assertEquals(-0.25, store.getZ(0), DELTA);
+        // Values outside [-1, 1] are clamped.
+        assertEquals(1, store.getW(1), DELTA);
+        assertEquals(-1, store.getX(1), DELTA);
+    }
+
+    @Test
+    public void setReencodesMiddleBlock() {
+        CompressedSampleStore store = new CompressedSampleStore();
+        long[] timestamps = timestamps(3 * CompressedSampleStore.BLOCK_SIZE);
+        for (long timestamp : timestamps)
+            store.add(timestamp, 1, 0, 0, 0);
+
+        // A jump that needs a much longer varint, so the following block moves.
+        int index = CompressedSampleStore.BLOCK_SIZE + 7;
+        timestamps[index] += 1L << 40;
+        store.set(index, timestamps[index], 0, 1, 0, 0);
+        // The first sample of a block is stored apart from the deltas.
+        index = 2 * CompressedSampleStore.BLOCK_SIZE;
+        timestamps[index] -= 3;
+        store.set(index, timestamps[index], 0, 0, 1, 0);
+
+        for (int i = 0; i < timestamps.length; ++i)
+            assertEquals("timestamp " + i, timestamps[i], store.getTimestamp(i));
+        assertEquals(1, store.getX(CompressedSampleStore.BLOCK_SIZE + 7), DELTA);
+        assertEquals(1, store.getY(2 * CompressedSampleStore.BLOCK_SIZE), DELTA);
+        assertEquals(1, store.getW(CompressedSampleStore.BLOCK_SIZE + 8), DELTA);
+    }
+
+    @Test
+    public void appendAfterSetInLastBlock() {
+        CompressedSampleStore store = new CompressedSampleStore();
+        int count = CompressedSampleStore.BLOCK_SIZE + 10;
+        for (int i = 0; i < count; ++i)
+            store.add(10L * i, 1, 0, 0, 0);
+        store.set(count - 1, 10L * count, 1, 0, 0, 0);
+        store.add(10L * count + 1, 1, 0, 0, 0);
+        store.add(10L * count + 2, 1, 0, 0, 0);
+
+        assertEquals(count + 2, store.size());
+        for (int i = 0; i < count - 1; ++i)
+            assertEquals(10L * i, store.getTimestamp(i));
+        assertEquals(10L * count, store.getTimestamp(count - 1));
+        assertEquals(10L * count + 1, store.getTimestamp(count));
+        assertEquals(10L * count + 2, store.getTimestamp(count + 1));
+    }
+
+    @Test
+    public void appendAfterSetOnBlockBoundary() {
+        CompressedSampleStore store = new CompressedSampleStore();
+        for (int i = 0; i < CompressedSampleStore.BLOCK_SIZE; ++i)
+            store.add(10L * i, 1, 0, 0, 0);
+        store.set(CompressedSampleStore.BLOCK_SIZE - 1, 10000, 1, 0, 0, 0);
+        store.add(10001, 1, 0, 0, 0);
+
+        assertEquals(10000, store.getTimestamp(CompressedSampleStore.BLOCK_SIZE - 1));
+        assertEquals(10001, store.getTimestamp(CompressedSampleStore.BLOCK_SIZE));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        CompressedSampleStore store = new CompressedSampleStore();
+        long[] timestamps = timestamps(2 * CompressedSampleStore.BLOCK_SIZE + 1);
+        for (int i = 0; i < timestamps.length; ++i)
+            store.add(timestamps[i], Math.cos(i), Math.sin(i), 0, 0);
+
+        Path file = Files.createTempFile("samples", ".bin");
+        try {
+            store.save(file);
+            CompressedSampleStore loaded = CompressedSampleStore.load(file);
+            assertEquals(store.size(), loaded.size());
+            for (int i = 0; i < timestamps.length; ++i) {
+                assertEquals(timestamps[i], loaded.getTimestamp(i));
+                assertEquals(store.getW(i), loaded.getW(i), 0);
+                assertEquals(store.getX(i), loaded.getX(i), 0);
+            }
+            // The loaded store keeps appending where the saved one stopped.
+            loaded.add(timestamps[timestamps.length - 1] + 5, 1, 0, 0, 0);
+            assertEquals(timestamps[timestamps.length - 1] + 5, loaded.getTimestamp(timestamps.length));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void copyOfAndTrim() {
+        ChunkedSampleStore source = new ChunkedSampleStore();
+        long[] timestamps = timestamps(100);
+        for (long timestamp : timestamps)
+            source.add(timestamp, 0, 0, 0, 1);
+
+        CompressedSampleStore copy = CompressedSampleStore.copyOf(source);
+        copy.trim();
+        assertEquals(source.size(), copy.size());
+        for (int i = 0; i < timestamps.length; ++i) {
+            assertEquals(timestamps[i], copy.getTimestamp(i));
+            assertEquals(1, copy.getZ(i), DELTA);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getPastTheEnd() {
+        CompressedSampleStore store = new CompressedSampleStore();
+        store.add(0, 1, 0, 0, 0);
+        store.getTimestamp(1);
+    }
+
+    /**
+     * A steady rate, with jitter, gaps, repeated timestamps, steps backwards and extreme deltas mixed in.
+     */
+    private static long[] timestamps(int count) {
+        long[] timestamps = new long[count];
+        long timestamp = -1000;
+        for (int i = 0; i < count; ++i) {
+            switch (i % 11) {
+                case 3:
+                    timestamp += 17;
+                    break;
+                case 5:
+                    // Repeated.
+                    break;
+                case 7:
+                    timestamp -= 50;
+                    break;
+                case 9:
+                    timestamp += (i % 2 == 0 ? 1L : -1L) << 45;
+                    break;
+                default:
+                    timestamp += 10;
+            }
+            timestamps[i] = timestamp;
+        }
+        return timestamps;
+    }
+}
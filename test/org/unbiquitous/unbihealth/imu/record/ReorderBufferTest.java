@@ -0,0 +1,122 @@
+package org.unbiquitous.unbihealth.imu.record;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderBufferTest {
+    @Test
+    public void inOrderSamplesAreReleasedAfterTheWindow() {
+        ReorderBuffer buffer = new ReorderBuffer(8, 20);
+        for (long timestamp = 0; timestamp <= 30; timestamp += 10)
+            assertTrue(buffer.add(timestamp, 1, 0, 0, 0));
+
+        // Only samples at least a window older than the newest one (30) are due.
+        assertEquals(2, buffer.due(false));
+        assertEquals(4, buffer.due(true));
+        buffer.remove(2);
+        assertEquals(2, buffer.size());
+        assertEquals(20, buffer.getTimestamp(0));
+        assertEquals(30, buffer.getTimestamp(1));
+    }
+
+    @Test
+    public void lateArrivalIsInsertedInOrder() {
+        ReorderBuffer buffer = new ReorderBuffer(8, 100);
+        buffer.add(10, 0.1, 0, 0, 0);
+        buffer.add(30, 0.3, 0, 0, 0);
+        buffer.add(40, 0.4, 0, 0, 0);
+        buffer.add(20, 0.2, 0, 0, 0);
+        // Equal timestamps keep their arrival order.
+        buffer.add(20, 0.25, 0, 0, 0);
+        buffer.add(5, 0.05, 0, 0, 0);
+
+        long[] timestamps = {5, 10, 20, 20, 30, 40};
+        double[] w = {0.05, 0.1, 0.2, 0.25, 0.3, 0.4};
+        assertEquals(timestamps.length, buffer.size());
+        for (int i = 0; i < timestamps.length; ++i) {
+            assertEquals(timestamps[i], buffer.getTimestamp(i));
+            assertEquals(w[i], buffer.getW(i), 0);
+        }
+    }
+
+    @Test
+    public void sampleOlderThanTheReleasedOnesIsLate() {
+        ReorderBuffer buffer = new ReorderBuffer(4, 0);
+        buffer.add(10, 1, 0, 0, 0);
+        buffer.add(20, 1, 0, 0, 0);
+        buffer.remove(1);
+
+        assertFalse(buffer.add(5, 1, 0, 0, 0));
+        // As old as the last released one is still in order.
+        assertTrue(buffer.add(10, 1, 0, 0, 0));
+        assertTrue(buffer.add(15, 1, 0, 0, 0));
+        assertEquals(3, buffer.size());
+        assertEquals(10, buffer.getTimestamp(0));
+        assertEquals(15, buffer.getTimestamp(1));
+        assertEquals(20, buffer.getTimestamp(2));
+    }
+
+    @Test
+    public void dueLeavesRoomForTheNextSample() {
+        ReorderBuffer buffer = new ReorderBuffer(3, 1000);
+        buffer.add(30, 1, 0, 0, 0);
+        buffer.add(10, 1, 0, 0, 0);
+        assertEquals(0, buffer.due(false));
+        buffer.add(20, 1, 0, 0, 0);
+
+        // Nothing is out of the window, but the buffer is full.
+        assertEquals(1, buffer.due(false));
+        buffer.remove(buffer.due(false));
+        assertEquals(20, buffer.getTimestamp(0));
+        assertTrue(buffer.add(40, 1, 0, 0, 0));
+    }
+
+    @Test
+    public void wrapsAroundTheCircularBuffer() {
+        ReorderBuffer buffer = new ReorderBuffer(4, 15);
+        long next = 0;
+        for (int round = 0; round < 10; ++round) {
+            // Each pair arrives swapped.
+            buffer.add(next + 10, 1, next + 10, 0, 0);
+            buffer.add(next, 1, next, 0, 0);
+            next += 20;
+            int due = buffer.due(false);
+            for (int i = 0; i < due; ++i)
+                assertEquals(buffer.getTimestamp(i), buffer.getX(i), 0);
+            for (int i = 1; i < buffer.size(); ++i)
+                assertTrue(buffer.getTimestamp(i - 1) <= buffer.getTimestamp(i));
+            buffer.remove(due);
+        }
+        assertEquals(2, buffer.size());
+        assertEquals(next - 20, buffer.getTimestamp(0));
+        assertEquals(next - 10, buffer.getTimestamp(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addToFullBuffer() {
+        ReorderBuffer buffer = new ReorderBuffer(2, 0);
+        buffer.add(0, 1, 0, 0, 0);
+        buffer.add(1, 1, 0, 0, 0);
+        buffer.add(2, 1, 0, 0, 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void removeMoreThanTheSize() {
+        ReorderBuffer buffer = new ReorderBuffer(2, 0);
+        buffer.add(0, 1, 0, 0, 0);
+        buffer.remove(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityLessThanTwo() {
+        new ReorderBuffer(1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWindow() {
+        new ReorderBuffer(2, -1);
+    }
+}
@@ -0,0 +1,193 @@
+package org.unbiquitous.unbihealth.imu.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.unbihealth.imu.record.ChunkedSampleStore;
+import org.unbiquitous.unbihealth.imu.record.SampleStore;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SensorLogTest {
+    private static final int BLOCK_SIZE = 4;
+    private static final int SEGMENT_SIZE = 10;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("sensorlog");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendAndReadAcrossSegments() throws IOException {
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            log.append("a", samples(0, 7));
+            RecordingInfo b = log.append("b", samples(7, 32));
+
+            assertEquals(25, b.getSize());
+            assertEquals(70, b.getStartTime());
+            assertEquals(310, b.getEndTime());
+            assertSamples(7, 32, log.read(b, 0, 25));
+            assertSamples(10, 15, log.read(b, 3, 8));
+            // Timestamps from 100 to 200, across recordings and segments.
+            assertSamples(10, 21, log.query(100, 200, Integer.MAX_VALUE));
+            assertSamples(10, 13, log.query(100, 200, 3));
+        }
+
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            List<RecordingInfo> recordings = log.list();
+            assertEquals(2, recordings.size());
+            assertEquals("a", recordings.get(0).getRecordId());
+            assertEquals("b", recordings.get(1).getRecordId());
+            assertSamples(0, 7, log.read(log.find("a"), 0, 7));
+            assertSamples(7, 32, log.read(log.find("b"), 0, 25));
+        }
+    }
+
+    @Test
+    public void appendReplacesRecordingWithTheSameId() throws IOException {
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            log.append("a", samples(0, 3));
+            log.append("b", samples(3, 6));
+            log.append("a", samples(6, 8));
+        }
+
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            List<RecordingInfo> recordings = log.list();
+            assertEquals(2, recordings.size());
+            assertEquals("b", recordings.get(0).getRecordId());
+            assertEquals("a", recordings.get(1).getRecordId());
+            assertSamples(6, 8, log.read(log.find("a"), 0, 2));
+        }
+    }
+
+    @Test
+    public void partialCatalogEntryIsCutOffOnOpen() throws IOException {
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            log.append("a", samples(0, 3));
+        }
+        Path catalog = dir.resolve(SensorLog.CATALOG_FILE);
+        long valid = Files.size(catalog);
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            log.append("b", samples(3, 6));
+        }
+        // As if a crash interrupted the write of b's entry.
+        truncate(catalog, valid + 5);
+
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            assertEquals(1, log.list().size());
+            assertNull(log.find("b"));
+            assertEquals(valid, Files.size(catalog));
+            // New entries go right after the last valid one.
+            log.append("c", samples(6, 8));
+        }
+
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            List<RecordingInfo> recordings = log.list();
+            assertEquals(2, recordings.size());
+            assertEquals("a", recordings.get(0).getRecordId());
+            assertEquals("c", recordings.get(1).getRecordId());
+            assertSamples(6, 8, log.read(log.find("c"), 0, 2));
+        }
+    }
+
+    @Test
+    public void entryReferringToMissingSamplesIsCutOffOnOpen() throws IOException {
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, 100)) {
+            log.append("a", samples(0, 5));
+            log.append("b", samples(5, 10));
+        }
+        // Leaves 8 samples and a partial record, as if the last samples never made it to disk.
+        truncate(Segment.path(dir, 0), Segment.HEADER_SIZE + 8 * Segment.RECORD_SIZE + 7);
+
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, 100)) {
+            assertEquals(1, log.list().size());
+            assertNull(log.find("b"));
+            assertSamples(0, 5, log.read(log.find("a"), 0, 5));
+            RecordingInfo c = log.append("c", samples(20, 22));
+            assertEquals(8, c.position);
+        }
+        assertEquals(Segment.HEADER_SIZE + 10 * Segment.RECORD_SIZE, Files.size(Segment.path(dir, 0)));
+    }
+
+    @Test
+    public void retainDropsOldSegmentsAndTheirRecordings() throws IOException {
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            RecordingInfo a = log.append("a", samples(0, 12));
+            log.append("b", samples(12, 20));
+            log.append("c", samples(20, 25));
+
+            // Nothing is older than the cutoff and everything fits.
+            assertEquals(0, log.retain(0, 25));
+            assertEquals(1, log.retain(0, 15));
+            assertNull(log.find("a"));
+            assertEquals(2, log.list().size());
+            try {
+                log.read(a, 0, 12);
+                fail("read a dropped recording");
+            } catch (IOException e) {
+                // Expected.
+            }
+            assertSamples(12, 20, log.read(log.find("b"), 0, 8));
+
+            // Every recording is older than the cutoff, but the last segment is kept.
+            assertEquals(2, log.retain(Long.MAX_VALUE, Long.MAX_VALUE));
+            assertEquals(0, log.list().size());
+        }
+        assertFalse(Files.exists(Segment.path(dir, 0)));
+        assertFalse(Files.exists(Segment.path(dir, 10)));
+        assertTrue(Files.exists(Segment.path(dir, 20)));
+
+        try (SensorLog log = SensorLog.open("s", dir, BLOCK_SIZE, SEGMENT_SIZE)) {
+            assertEquals(0, log.list().size());
+            assertEquals(25, log.append("d", samples(25, 26)).position);
+        }
+    }
+
+    /**
+     * @return Samples from the given index, inclusive, to the other, exclusive, each one with a timestamp of
+     * ten times its index.
+     */
+    private static SampleStore samples(int from, int to) {
+        ChunkedSampleStore store = new ChunkedSampleStore();
+        for (int i = from; i < to; ++i)
+            store.add(10L * i, 1, i, -i, 0.5);
+        return store;
+    }
+
+    private static void assertSamples(int from, int to, SampleStore store) {
+        assertEquals(to - from, store.size());
+        for (int i = from; i < to; ++i) {
+            assertEquals(10L * i, store.getTimestamp(i - from));
+            assertEquals(i, store.getX(i - from), 0);
+            assertEquals(-i, store.getY(i - from), 0);
+        }
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+}